@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that a {@link BTreeFile} recovers from a crash. Each round starts a
+ * process that adds keys to the file in groups, committing each group, and
+ * stops it between writing the pages of a randomly chosen group and writing
+ * its header. Then it opens the file and checks that every group up to and
+ * including that one is in the file, since its log was forced before the
+ * crash, and prints every disagreement.
+ *
+ * @since 2021-01-26
+ */
+public final class BTreeCrashTest {
+	private static final int DEFAULT_ROUNDS = 20;
+	
+	/**
+	 * The exit status of a process stopped by this test.
+	 */
+	private static final int CRASH_STATUS = 3;
+	
+	/**
+	 * The number of keys added in each group, enough to change several pages.
+	 */
+	private static final int GROUP_SIZE = 200;
+	
+	/**
+	 * The most groups a process adds before it is stopped.
+	 */
+	private static final int MAX_GROUPS = 10;
+	
+	/**
+	 * Enough pages that the tree never commits by itself.
+	 */
+	private static final int CACHE_PAGES = 4096;
+	
+	/**
+	 * Opens {@code file}, checks that it holds exactly the keys below
+	 * {@code expected} with their values, and closes it.
+	 *
+	 * @return number of disagreements found, each of which is printed
+	 * @since 2021-01-26
+	 */
+	private static final int check(File file, int expected) throws Exception {
+		int problems = 0;
+		try (BTreeFile tree = BTreeFile.open(file, CACHE_PAGES)) {
+			if (tree.size() != expected) {
+				System.out.printf("size is %d, expected %d%n", tree.size(),
+						expected);
+				problems++;
+			}
+			
+			int wrong = 0;
+			for (int i = 0; i < expected; i++) {
+				if (!Arrays.equals(tree.get(key(i)), value(i))) {
+					wrong++;
+				}
+			}
+			if (wrong > 0) {
+				System.out.printf("%d keys are missing or wrong%n", wrong);
+				problems++;
+			}
+			
+			int count = 0;
+			final Iterator<Map.Entry<byte[], byte[]>> entries = tree
+					.iterator(null, true);
+			while (entries.hasNext()) {
+				entries.next();
+				count++;
+			}
+			if (count != expected) {
+				System.out.printf("iterated over %d keys, expected %d%n", count,
+						expected);
+				problems++;
+			}
+		}
+		return problems;
+	}
+	
+	/**
+	 * Adds groups of keys to a file until the {@code crashAt}th commit, and
+	 * stops the process after writing that commit's pages.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final void crash(File file, int crashAt) throws Exception {
+		try (BTreeFile tree = BTreeFile.open(file, CACHE_PAGES)) {
+			final AtomicInteger commits = new AtomicInteger();
+			BTreeFile.beforeHeaderWrite = () -> {
+				if (commits.incrementAndGet() == crashAt) {
+					Runtime.getRuntime().halt(CRASH_STATUS);
+				}
+			};
+			
+			int next = (int) tree.size();
+			while (true) {
+				for (int i = 0; i < GROUP_SIZE; i++, next++) {
+					tree.put(key(next), value(next));
+				}
+				tree.commit(next, true);
+			}
+		}
+	}
+	
+	/**
+	 * @return key of the {@code i}th entry
+	 * @since 2021-01-26
+	 */
+	private static final byte[] key(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+	
+	/**
+	 * @param args commandline arguments: the file to use, and optionally the
+	 *             number of rounds
+	 * @since 2021-01-26
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals("crash")) {
+			crash(new File(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: BTreeCrashTest <file> [rounds]");
+			System.exit(2);
+		}
+		
+		final File file = new File(args[0]);
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_ROUNDS;
+		Files.deleteIfExists(file.toPath());
+		Files.deleteIfExists(BTreeFile.logFile(file).toPath());
+		
+		final String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		int expected = 0;
+		int problems = 0;
+		for (int round = 0; round < rounds; round++) {
+			final int crashAt = ThreadLocalRandom.current().nextInt(MAX_GROUPS)
+					+ 1;
+			final Process process = new ProcessBuilder(java, "-cp",
+					System.getProperty("java.class.path"),
+					BTreeCrashTest.class.getName(), "crash", file.getPath(),
+					Integer.toString(crashAt)).inheritIO().start();
+			final int status = process.waitFor();
+			if (status != CRASH_STATUS) {
+				System.out.printf("round %d: process exited with %d%n", round,
+						status);
+				problems++;
+				break;
+			}
+			
+			expected += crashAt * GROUP_SIZE;
+			problems += check(file, expected);
+		}
+		
+		System.out.printf("%d rounds, %d keys%n", rounds, expected);
+		System.out.println(problems == 0 ? "OK" : problems + " problems");
+		System.exit(problems == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * @return value of the {@code i}th entry
+	 * @since 2021-01-26
+	 */
+	private static final byte[] value(int i) {
+		final byte[] value = new byte[16];
+		Arrays.fill(value, (byte) i);
+		ByteBuffer.wrap(value).putInt(i);
+		return value;
+	}
+}
@@ -0,0 +1,1027 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent B+tree stored in a file, mapping byte string keys to byte string
+ * values. Keys are ordered by comparing their bytes as unsigned numbers.
+ * <p>
+ * The file is a sequence of fixed-size pages. Page 0 is a header; every other
+ * page is one node of the tree. Only the pages an operation needs are read,
+ * and recently used pages are kept in a bounded cache.
+ * <p>
+ * Removing a key never merges pages, so a page may become empty; it is reused
+ * when keys are inserted into the same range again.
+ * <p>
+ * Changes are written to the file in groups by {@link #commit}. Until then,
+ * changed pages are kept in memory, so the file always holds the tree as of
+ * the last commit. Pages are changed in place, so a commit first writes a
+ * record to a log next to the file, holding every page changed since the last
+ * commit and the new header, and forces it onto the storage device. Then the
+ * pages are written, and the header, which counts commits with a generation
+ * number, is written last. If the process or system stops partway through
+ * writing the pages, the log holds a complete record with a newer generation
+ * than the header, and opening the file writes its pages again. If it stops
+ * while writing the log, the record is incomplete and ignored, and the tree is
+ * as it was after the previous commit.
+ *
+ * @since 2021-01-21
+ */
+final class BTreeFile implements Closeable {
+	/**
+	 * The size of each page in the file.
+	 */
+	static final int PAGE_SIZE = 4096;
+	
+	/**
+	 * The maximum combined size of a key and its value. This is small enough
+	 * that every page can always hold at least three entries, so splitting a
+	 * full page always produces two valid pages.
+	 */
+	static final int MAX_ENTRY_SIZE = 1024;
+	
+	/**
+	 * The first four bytes of the file ("IRBT").
+	 */
+	private static final int MAGIC = 0x49524254;
+	
+	/**
+	 * The version of the file format. Version 1 files have no generation in
+	 * their header and version 2 files have no stamp, and both are upgraded
+	 * when they are next committed.
+	 */
+	private static final int VERSION = 3;
+	
+	/**
+	 * Size of the header: magic number, version, root page and page count (4
+	 * bytes each), then entry count, generation and stamp (8 bytes each).
+	 */
+	private static final int HEADER_SIZE = 40;
+	
+	/**
+	 * The stamp of a commit made by the tree itself rather than its user.
+	 */
+	static final long PARTIAL_STAMP = -1;
+	
+	/**
+	 * Called after the pages of a commit are written and before its header is,
+	 * so that a test can stop the process there; normally null.
+	 */
+	static volatile Runnable beforeHeaderWrite = null;
+	
+	/**
+	 * Size of the data at the start of a log record: generation and stamp (8
+	 * bytes each), root page and page count (4 bytes each), entry count (8
+	 * bytes) and number of pages (4 bytes). The pages follow, each after its
+	 * page number, then a CRC32 checksum of the whole record. Version 2 logs
+	 * have no stamp.
+	 */
+	private static final int LOG_HEADER_SIZE = 36;
+	
+	private static final byte LEAF = 0;
+	private static final byte INTERNAL = 1;
+	
+	/**
+	 * Size of the data at the start of every node page: type (1 byte), entry
+	 * count (2 bytes) and next leaf or first child (4 bytes).
+	 */
+	private static final int NODE_HEADER_SIZE = 7;
+	
+	/**
+	 * The number of entries returned by each call to {@link #entriesAfter}
+	 * made by an iterator.
+	 */
+	private static final int ITERATOR_BATCH_SIZE = 256;
+	
+	/**
+	 * One node of the tree, decoded from its page.
+	 * <p>
+	 * In a leaf, {@code values} holds the value of each key and {@code next} is
+	 * the page of the next leaf, or 0 if there is none. In an internal node,
+	 * {@code children} has one more element than {@code keys}, and each key is
+	 * the smallest key in the child to its right.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final class Node {
+		private final int page;
+		private final boolean leaf;
+		private final List<byte[]> keys;
+		private final List<byte[]> values;
+		private final List<Integer> children;
+		private int next;
+		
+		/**
+		 * @since 2021-01-21
+		 */
+		private Node(int page, boolean leaf) {
+			this.page = page;
+			this.leaf = leaf;
+			this.keys = new ArrayList<>();
+			this.values = leaf ? new ArrayList<>() : null;
+			this.children = leaf ? null : new ArrayList<>();
+		}
+		
+		/**
+		 * @return index of the child that {@code key} belongs in
+		 * @since 2021-01-21
+		 */
+		private final int childIndex(byte[] key) {
+			// number of keys less than or equal to key
+			int low = 0;
+			int high = this.keys.size();
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (compare(this.keys.get(middle), key) <= 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+		
+		/**
+		 * @return index of {@code key} in this node's keys if present, otherwise
+		 *         {@code -(insertion point) - 1}
+		 * @since 2021-01-21
+		 */
+		private final int search(byte[] key) {
+			int low = 0;
+			int high = this.keys.size() - 1;
+			while (low <= high) {
+				final int middle = (low + high) >>> 1;
+				final int comparison = compare(this.keys.get(middle), key);
+				if (comparison < 0) {
+					low = middle + 1;
+				} else if (comparison > 0) {
+					high = middle - 1;
+				} else
+					return middle;
+			}
+			return -low - 1;
+		}
+		
+		/**
+		 * @return number of bytes needed to store this node
+		 * @since 2021-01-21
+		 */
+		private final int size() {
+			int size = NODE_HEADER_SIZE;
+			for (int i = 0; i < this.keys.size(); i++) {
+				size += this.entrySize(i);
+			}
+			return size;
+		}
+		
+		/**
+		 * @return number of bytes needed to store entry {@code i}
+		 * @since 2021-01-21
+		 */
+		private final int entrySize(int i) {
+			return 2 + this.keys.get(i).length
+					+ (this.leaf ? 2 + this.values.get(i).length : 4);
+		}
+	}
+	
+	/**
+	 * A node that was split into two, and must be added to its parent.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final class Split {
+		private final byte[] separator;
+		private final int right;
+		
+		/**
+		 * @param separator smallest key in the new right node
+		 * @param right     page of new right node
+		 * @since 2021-01-21
+		 */
+		private Split(byte[] separator, int right) {
+			this.separator = separator;
+			this.right = right;
+		}
+	}
+	
+	/**
+	 * Compares two keys as sequences of unsigned bytes.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final int compare(byte[] a, byte[] b) {
+		return Arrays.compareUnsigned(a, b);
+	}
+	
+	/**
+	 * @return file logging the operations on the B+tree file {@code file}
+	 * @since 2021-01-26
+	 */
+	static final File logFile(File file) {
+		return new File(file.getPath() + ".log");
+	}
+	
+	/**
+	 * Opens a B+tree file, creating an empty tree if the file is empty or does
+	 * not exist. If the last commit to the file was interrupted, it is finished
+	 * from the log.
+	 *
+	 * @param file       file to open
+	 * @param cachePages maximum number of pages to keep cached
+	 * @return opened tree
+	 * @throws IOException           if the file cannot be opened
+	 * @throws IllegalStateException if the file is not a B+tree file
+	 * @since 2021-01-21
+	 */
+	static final BTreeFile open(File file, int cachePages) throws IOException {
+		final FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE);
+		FileChannel log = null;
+		try {
+			log = FileChannel.open(logFile(file).toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE);
+			final BTreeFile tree = new BTreeFile(channel, log, cachePages);
+			if (channel.size() == 0) {
+				log.truncate(0); // left over from a file that was deleted
+				tree.initialize();
+			} else {
+				tree.recover(tree.readHeader());
+			}
+			return tree;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			if (log != null) {
+				log.close();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Reads from {@code channel} until {@code buffer} is full.
+	 *
+	 * @return true iff the buffer was filled before the end of the channel
+	 * @since 2021-01-26
+	 */
+	private static final boolean readFully(FileChannel channel,
+			ByteBuffer buffer, long position) throws IOException {
+		final int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer,
+					position + buffer.position() - start) < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	private final FileChannel channel;
+	
+	/**
+	 * The log of the latest commit.
+	 */
+	private final FileChannel log;
+	
+	/**
+	 * Recently used nodes, least recently used first.
+	 */
+	private final LinkedHashMap<Integer, Node> cache;
+	
+	private final int cachePages;
+	
+	/**
+	 * Nodes changed by the current operation.
+	 */
+	private final Set<Node> dirty = new LinkedHashSet<>();
+	
+	/**
+	 * The contents of every page changed since the last commit, by page
+	 * number. These are read instead of the file, which still holds the pages
+	 * as of the last commit.
+	 */
+	private final Map<Integer, ByteBuffer> uncommitted = new LinkedHashMap<>();
+	
+	private int root;
+	
+	private int pageCount;
+	
+	private long entryCount;
+	
+	/**
+	 * The number of commits written to the file.
+	 */
+	private long generation;
+	
+	/**
+	 * The stamp of the last commit.
+	 */
+	private long stamp;
+	
+	/**
+	 * @since 2021-01-21
+	 */
+	private BTreeFile(FileChannel channel, FileChannel log, int cachePages) {
+		this.channel = channel;
+		this.log = log;
+		this.cachePages = cachePages;
+		this.cache = new LinkedHashMap<>(16, 0.75f, true);
+	}
+	
+	/**
+	 * Allocates a new, empty node at the end of the file.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final Node allocate(boolean leaf) {
+		final Node node = new Node(this.pageCount++, leaf);
+		this.cache.put(node.page, node);
+		this.dirty.add(node);
+		return node;
+	}
+	
+	/**
+	 * Commits every change made so far, then closes the file. If there are
+	 * uncommitted changes, they are committed with {@link #PARTIAL_STAMP}.
+	 *
+	 * @since 2021-01-21
+	 */
+	@Override
+	public final synchronized void close() throws IOException {
+		try {
+			this.commit(this.uncommitted.isEmpty() ? this.stamp : PARTIAL_STAMP,
+					true);
+		} finally {
+			try {
+				this.channel.close();
+			} finally {
+				this.log.close();
+			}
+		}
+	}
+	
+	/**
+	 * @return true iff {@code key} is in the tree
+	 * @since 2021-01-21
+	 */
+	final synchronized boolean containsKey(byte[] key) {
+		return this.get(key) != null;
+	}
+	
+	/**
+	 * Gets up to {@code max} entries whose keys come after {@code from}, in key
+	 * order.
+	 *
+	 * @param from      key to start at, or null to start at the smallest key
+	 * @param inclusive if true, include {@code from} itself if it is present
+	 * @param max       maximum number of entries to return
+	 * @return entries, each an array of key and value
+	 * @since 2021-01-21
+	 */
+	final synchronized List<byte[][]> entriesAfter(byte[] from,
+			boolean inclusive, int max) {
+		final List<byte[][]> entries = new ArrayList<>();
+		
+		try {
+			// find leaf containing from
+			Node node = this.read(this.root);
+			while (!node.leaf) {
+				node = this.read(from == null ? node.children.get(0)
+						: node.children.get(node.childIndex(from)));
+			}
+			
+			// find first key in that leaf
+			int i;
+			if (from == null) {
+				i = 0;
+			} else {
+				i = node.search(from);
+				if (i < 0) {
+					i = -i - 1;
+				} else if (!inclusive) {
+					i++;
+				}
+			}
+			
+			// collect entries, moving to the following leaves as needed
+			while (entries.size() < max) {
+				if (i < node.keys.size()) {
+					entries.add(new byte[][] { node.keys.get(i), node.values.get(i) });
+					i++;
+				} else if (node.next != 0) {
+					node = this.read(node.next);
+					i = 0;
+				} else {
+					break;
+				}
+			}
+		} finally {
+			this.trimCache();
+		}
+		
+		return entries;
+	}
+	
+	/**
+	 * Writes every change made since the last commit to the file, through the
+	 * log.
+	 * <p>
+	 * If {@code sync} is true, the log is forced onto the storage device
+	 * before any page is changed, and the file is forced afterwards, so the
+	 * changes survive a system crash once this returns. Otherwise, they only
+	 * survive the process stopping.
+	 *
+	 * @param stamp a number stored with the commit, so that files committed
+	 *              together can be checked against each other; see
+	 *              {@link #stamp()}
+	 * @param sync  whether to force the changes onto the storage device
+	 * @throws IOException if the changes cannot be written; they stay
+	 *                     uncommitted, so committing again retries them
+	 * @since 2021-01-21
+	 */
+	final synchronized void commit(long stamp, boolean sync)
+			throws IOException {
+		if (this.uncommitted.isEmpty() && stamp == this.stamp) {
+			if (sync) {
+				this.channel.force(false);
+			}
+			return;
+		}
+		
+		this.generation++;
+		this.stamp = stamp;
+		this.writeLog();
+		if (sync) {
+			this.log.force(false);
+		}
+		
+		for (final Map.Entry<Integer, ByteBuffer> page : this.uncommitted
+				.entrySet()) {
+			this.writePage(page.getKey(), page.getValue());
+		}
+		final Runnable hook = beforeHeaderWrite;
+		if (hook != null) {
+			hook.run();
+		}
+		this.writeHeader();
+		if (sync) {
+			this.channel.force(false);
+		}
+		this.uncommitted.clear();
+	}
+	
+	/**
+	 * Keeps every node changed by the current operation until the next commit,
+	 * then drops the least recently used nodes from the cache. If too many
+	 * pages are uncommitted, they are committed, so that they do not fill the
+	 * memory.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final void finish() {
+		try {
+			for (final Node node : this.dirty) {
+				this.uncommitted.put(node.page, encode(node));
+			}
+			if (this.uncommitted.size() > this.cachePages) {
+				this.commit(PARTIAL_STAMP, true);
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			this.dirty.clear();
+			this.trimCache();
+		}
+	}
+	
+	/**
+	 * @return value of {@code key}, or null if the key is not in the tree
+	 * @since 2021-01-21
+	 */
+	final synchronized byte[] get(byte[] key) {
+		try {
+			Node node = this.read(this.root);
+			while (!node.leaf) {
+				node = this.read(node.children.get(node.childIndex(key)));
+			}
+			
+			final int i = node.search(key);
+			return i >= 0 ? node.values.get(i) : null;
+		} finally {
+			this.trimCache();
+		}
+	}
+	
+	/**
+	 * Creates an empty tree in an empty file.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final void initialize() {
+		this.pageCount = 1; // header
+		this.root = this.allocate(true).page;
+		this.entryCount = 0;
+		this.generation = 0;
+		this.finish();
+		try {
+			this.commit(0, false);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Inserts {@code key} into the subtree rooted at {@code node}.
+	 *
+	 * @param oldValue array whose first element is set to the old value of
+	 *                 {@code key}, if there was one
+	 * @return split of {@code node} if it overflowed, otherwise null
+	 * @since 2021-01-21
+	 */
+	private final Split insert(Node node, byte[] key, byte[] value,
+			byte[][] oldValue) {
+		if (node.leaf) {
+			final int i = node.search(key);
+			if (i >= 0) {
+				oldValue[0] = node.values.set(i, value);
+			} else {
+				node.keys.add(-i - 1, key);
+				node.values.add(-i - 1, value);
+				this.entryCount++;
+			}
+		} else {
+			final int i = node.childIndex(key);
+			final Split childSplit = this.insert(this.read(node.children.get(i)),
+					key, value, oldValue);
+			if (childSplit == null)
+				return null;
+			
+			node.keys.add(i, childSplit.separator);
+			node.children.add(i + 1, childSplit.right);
+		}
+		
+		this.dirty.add(node);
+		return node.size() > PAGE_SIZE ? this.split(node) : null;
+	}
+	
+	/**
+	 * Sets the value of {@code key}, adding it to the tree if needed.
+	 *
+	 * @return old value of {@code key}, or null if it was not in the tree
+	 * @throws IllegalArgumentException if the key and value are larger than
+	 *                                  {@link #MAX_ENTRY_SIZE}
+	 * @since 2021-01-21
+	 */
+	final synchronized byte[] put(byte[] key, byte[] value) {
+		if (key.length + value.length > MAX_ENTRY_SIZE)
+			throw new IllegalArgumentException("B+tree entry too large.");
+		
+		try {
+			final byte[][] oldValue = new byte[1][];
+			final Split split = this.insert(this.read(this.root), key, value,
+					oldValue);
+			
+			// root was split, so the tree needs a new root
+			if (split != null) {
+				final Node newRoot = this.allocate(false);
+				newRoot.children.add(this.root);
+				newRoot.keys.add(split.separator);
+				newRoot.children.add(split.right);
+				this.root = newRoot.page;
+			}
+			
+			return oldValue[0];
+		} finally {
+			this.finish();
+		}
+	}
+	
+	/**
+	 * Gets a node, reading its page if it is not cached.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final Node read(int page) {
+		final Node cached = this.cache.get(page);
+		if (cached != null)
+			return cached;
+		
+		final ByteBuffer buffer;
+		final ByteBuffer uncommittedPage = this.uncommitted.get(page);
+		if (uncommittedPage != null) {
+			buffer = uncommittedPage.duplicate();
+		} else {
+			buffer = ByteBuffer.allocate(PAGE_SIZE);
+			try {
+				while (buffer.hasRemaining()) {
+					if (this.channel.read(buffer,
+							(long) page * PAGE_SIZE + buffer.position()) < 0)
+						throw new IllegalStateException(
+								"B+tree page " + page + " is missing.");
+				}
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			buffer.flip();
+		}
+		
+		final byte type = buffer.get();
+		if (type != LEAF && type != INTERNAL)
+			throw new IllegalStateException("B+tree page " + page + " is corrupt.");
+		final Node node = new Node(page, type == LEAF);
+		final int count = Short.toUnsignedInt(buffer.getShort());
+		final int nextOrFirstChild = buffer.getInt();
+		
+		if (node.leaf) {
+			node.next = nextOrFirstChild;
+		} else {
+			node.children.add(nextOrFirstChild);
+		}
+		for (int i = 0; i < count; i++) {
+			node.keys.add(readBytes(buffer));
+			if (node.leaf) {
+				node.values.add(readBytes(buffer));
+			} else {
+				node.children.add(buffer.getInt());
+			}
+		}
+		
+		this.cache.put(page, node);
+		return node;
+	}
+	
+	/**
+	 * Reads a length-prefixed byte string.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final byte[] readBytes(ByteBuffer buffer) {
+		final byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+		buffer.get(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Reads the header page.
+	 *
+	 * @return version of the file
+	 *
+	 * @since 2021-01-21
+	 */
+	private final int readHeader() throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (!readFully(this.channel, header, 0))
+			throw new IllegalStateException("Truncated B+tree header.");
+		header.flip();
+		
+		if (header.getInt() != MAGIC)
+			throw new IllegalStateException("Invalid B+tree file.");
+		final int version = header.getInt();
+		if (version < 1 || version > VERSION)
+			throw new IllegalStateException(
+					"Unsupported B+tree version " + version + ".");
+		this.root = header.getInt();
+		this.pageCount = header.getInt();
+		this.entryCount = header.getLong();
+		this.generation = version == 1 ? 0 : header.getLong();
+		this.stamp = version < 3 ? 0 : header.getLong();
+		return version;
+	}
+	
+	/**
+	 * Finishes the last operation if it was interrupted, by writing the pages
+	 * and header in the log again. Nothing is done unless the log holds a
+	 * complete record newer than the header.
+	 *
+	 * @param version version of the file, which the log was written with
+	 * @since 2021-01-26
+	 */
+	private final void recover(int version) throws IOException {
+		final int logHeaderSize = version < 3 ? LOG_HEADER_SIZE - 8
+				: LOG_HEADER_SIZE;
+		final ByteBuffer logHeader = ByteBuffer.allocate(logHeaderSize);
+		if (!readFully(this.log, logHeader, 0))
+			return;
+		logHeader.flip();
+		if (logHeader.getLong() <= this.generation)
+			return;
+		
+		final int count = logHeader.getInt(logHeaderSize - 4);
+		final long recordSize = logHeaderSize + 4
+				+ (long) count * (4 + PAGE_SIZE);
+		if (count < 0 || recordSize > this.log.size())
+			return;
+		
+		// a record whose checksum does not match was interrupted, so none of
+		// its pages were written
+		final ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+		if (!readFully(this.log, record, 0))
+			return;
+		final CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.capacity() - 4);
+		if (record.getInt(record.capacity() - 4) != (int) crc.getValue())
+			return;
+		
+		record.position(logHeaderSize);
+		for (int i = 0; i < count; i++) {
+			final int page = record.getInt();
+			final ByteBuffer contents = record.slice();
+			contents.limit(PAGE_SIZE);
+			this.writePage(page, contents);
+			record.position(record.position() + PAGE_SIZE);
+		}
+		
+		record.position(0);
+		this.generation = record.getLong();
+		this.stamp = version < 3 ? 0 : record.getLong();
+		this.root = record.getInt();
+		this.pageCount = record.getInt();
+		this.entryCount = record.getLong();
+		this.writeHeader();
+		this.channel.force(false);
+	}
+	
+	/**
+	 * Removes {@code key} from the tree.
+	 *
+	 * @return old value of {@code key}, or null if it was not in the tree
+	 * @since 2021-01-21
+	 */
+	final synchronized byte[] remove(byte[] key) {
+		try {
+			Node node = this.read(this.root);
+			while (!node.leaf) {
+				node = this.read(node.children.get(node.childIndex(key)));
+			}
+			
+			final int i = node.search(key);
+			if (i < 0)
+				return null;
+			
+			node.keys.remove(i);
+			this.entryCount--;
+			this.dirty.add(node);
+			return node.values.remove(i);
+		} finally {
+			this.finish();
+		}
+	}
+	
+	/**
+	 * @return number of entries in the tree
+	 * @since 2021-01-21
+	 */
+	final synchronized long size() {
+		return this.entryCount;
+	}
+	
+	/**
+	 * @return stamp of the last commit, 0 if the file has never been
+	 *         committed with one, or {@link #PARTIAL_STAMP} if the tree
+	 *         committed changes by itself
+	 * @since 2021-01-26
+	 */
+	final synchronized long stamp() {
+		return this.stamp;
+	}
+	
+	/**
+	 * Splits an overflowing node in two, moving the upper half of its entries
+	 * into a new node.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final Split split(Node node) {
+		// find the middle of the node by size, leaving at least one entry on
+		// each side
+		final int half = (node.size() - NODE_HEADER_SIZE) / 2;
+		int middle = 0;
+		int leftSize = 0;
+		while (middle < node.keys.size() - 2 && leftSize < half) {
+			leftSize += node.entrySize(middle);
+			middle++;
+		}
+		middle = Math.max(middle, 1);
+		
+		final Node right = this.allocate(node.leaf);
+		final byte[] separator;
+		if (node.leaf) {
+			// keys stay in leaves, so the separator is copied
+			separator = node.keys.get(middle);
+			moveTail(node.keys, right.keys, middle);
+			moveTail(node.values, right.values, middle);
+			right.next = node.next;
+			node.next = right.page;
+		} else {
+			// the separator moves up into the parent
+			separator = node.keys.get(middle);
+			moveTail(node.keys, right.keys, middle + 1);
+			node.keys.remove(middle);
+			moveTail(node.children, right.children, middle + 1);
+		}
+		
+		return new Split(separator, right.page);
+	}
+	
+	/**
+	 * Moves every element of {@code from} starting at {@code index} onto the
+	 * end of {@code to}.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final <E> void moveTail(List<E> from, List<E> to,
+			int index) {
+		final List<E> tail = from.subList(index, from.size());
+		to.addAll(tail);
+		tail.clear();
+	}
+	
+	/**
+	 * Removes the least recently used nodes from the cache until it is no
+	 * larger than its maximum size. Only called between operations, when no
+	 * nodes are dirty.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final void trimCache() {
+		final Iterator<Node> nodes = this.cache.values().iterator();
+		while (this.cache.size() > this.cachePages && nodes.hasNext()) {
+			nodes.next();
+			nodes.remove();
+		}
+	}
+	
+	/**
+	 * Encodes a node as the contents of its page.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final ByteBuffer encode(Node node) {
+		final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+		buffer.put(node.leaf ? LEAF : INTERNAL);
+		buffer.putShort((short) node.keys.size());
+		buffer.putInt(node.leaf ? node.next : node.children.get(0));
+		for (int i = 0; i < node.keys.size(); i++) {
+			writeBytes(buffer, node.keys.get(i));
+			if (node.leaf) {
+				writeBytes(buffer, node.values.get(i));
+			} else {
+				buffer.putInt(node.children.get(i + 1));
+			}
+		}
+		
+		buffer.clear(); // always write a whole page
+		return buffer;
+	}
+	
+	/**
+	 * Writes a record of the current commit to the log, replacing the record
+	 * of the previous one.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void writeLog() throws IOException {
+		final Map<Integer, ByteBuffer> pages = this.uncommitted;
+		final ByteBuffer record = ByteBuffer
+				.allocate(LOG_HEADER_SIZE + 4 + pages.size() * (4 + PAGE_SIZE));
+		record.putLong(this.generation);
+		record.putLong(this.stamp);
+		record.putInt(this.root);
+		record.putInt(this.pageCount);
+		record.putLong(this.entryCount);
+		record.putInt(pages.size());
+		for (final Map.Entry<Integer, ByteBuffer> page : pages.entrySet()) {
+			record.putInt(page.getKey());
+			record.put(page.getValue().duplicate());
+		}
+		
+		final CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		
+		record.flip();
+		while (record.hasRemaining()) {
+			this.log.write(record, record.position());
+		}
+	}
+	
+	/**
+	 * Writes the contents of a page.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final void writePage(int page, ByteBuffer contents)
+			throws IOException {
+		final ByteBuffer buffer = contents.duplicate();
+		final int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer, (long) page * PAGE_SIZE
+					+ buffer.position() - start);
+		}
+	}
+	
+	/**
+	 * Writes a length-prefixed byte string.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final void writeBytes(ByteBuffer buffer, byte[] bytes) {
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+	
+	/**
+	 * Writes the header page.
+	 *
+	 * @since 2021-01-21
+	 */
+	private final void writeHeader() throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(this.root);
+		header.putInt(this.pageCount);
+		header.putLong(this.entryCount);
+		header.putLong(this.generation);
+		header.putLong(this.stamp);
+		header.flip();
+		while (header.hasRemaining()) {
+			this.channel.write(header, header.position());
+		}
+	}
+	
+	/**
+	 * Iterates over the entries of the tree in key order, starting at
+	 * {@code from}. Entries are read in batches, so the tree may be changed
+	 * while iterating; each batch reflects the tree when it was read.
+	 *
+	 * @param from      key to start at, or null to start at the smallest key
+	 * @param inclusive if true, include {@code from} itself if it is present
+	 * @return iterator over entries
+	 * @since 2021-01-21
+	 */
+	final Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] from,
+			boolean inclusive) {
+		return new Iterator<Map.Entry<byte[], byte[]>>() {
+			private List<byte[][]> batch = BTreeFile.this.entriesAfter(from,
+					inclusive, ITERATOR_BATCH_SIZE);
+			private int index = 0;
+			
+			@Override
+			public boolean hasNext() {
+				if (this.index < this.batch.size())
+					return true;
+				if (this.batch.size() < ITERATOR_BATCH_SIZE)
+					return false;
+				
+				// read next batch
+				final byte[] last = this.batch.get(this.batch.size() - 1)[0];
+				this.batch = BTreeFile.this.entriesAfter(last, false,
+						ITERATOR_BATCH_SIZE);
+				this.index = 0;
+				return !this.batch.isEmpty();
+			}
+			
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				if (!this.hasNext())
+					throw new NoSuchElementException();
+				final byte[][] entry = this.batch.get(this.index++);
+				return new SimpleImmutableEntry<>(entry[0], entry[1]);
+			}
+		};
+	}
+}
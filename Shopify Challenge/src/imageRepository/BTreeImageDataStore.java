@@ -0,0 +1,582 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import imageRepository.GroupCommitter.Durability;
+
+/**
+ * An image data store that keeps its entries in a {@link BTreeFile}
+ * (imagedata.idx), so the data does not need to fit in memory. Opening the
+ * store only reads the header of the file, and each lookup or change only
+ * reads and writes the pages it needs.
+ * <p>
+ * Each value is one byte of flags (1 if the image is public, 2 if it has an
+ * owner) followed by the owner's username in UTF-8.
+ * <p>
+ * The public and private name indexes are kept in a second file
+ * (visibility.idx) with empty values. The key of a public image is a zero byte
+ * followed by its name; the key of a private image is a one byte, the owner's
+ * username, a zero byte and the image's name. Names are ordered by their UTF-8
+ * bytes.
+ * <p>
+ * Changes are synchronized, so an entry and its index key are always changed
+ * together. Changes are committed to the files in groups by a
+ * {@link GroupCommitter}, with both files stamped with the number of the
+ * group. If the files were not committed together, because the process
+ * stopped between committing them or a tree committed by itself, their stamps
+ * differ and the visibility index is built again from the image data when the
+ * store is next opened.
+ *
+ * @since 2021-01-21
+ */
+final class BTreeImageDataStore extends ImageDataStore {
+	static final String IMAGEDATA_INDEX_PATH = "imagedata.idx";
+	static final String VISIBILITY_INDEX_PATH = "visibility.idx";
+	
+	/**
+	 * The number of pages of the file to keep in memory.
+	 */
+	private static final int CACHE_PAGES = 1024;
+	
+	private static final byte PUBLIC = 1;
+	private static final byte HAS_OWNER = 2;
+	
+	private static final byte[] NO_VALUE = new byte[0];
+	private static final byte[] PUBLIC_PREFIX = { 0 };
+	
+	/**
+	 * Orders strings by their UTF-8 bytes, the same order the B+tree uses.
+	 */
+	private static final Comparator<String> UTF8_ORDER = (a, b) -> Arrays
+			.compareUnsigned(a.getBytes(StandardCharsets.UTF_8),
+					b.getBytes(StandardCharsets.UTF_8));
+	
+	/**
+	 * Opens the image data stored in the repository directory {@code imageDir}.
+	 * If the repository does not have an imagedata.idx file yet, one is created
+	 * from the repository's existing image data.
+	 * <p>
+	 * New files are built under temporary names and renamed into place once
+	 * they are complete, so an interrupted import or index build is started
+	 * again the next time the store is opened, rather than leaving a file that
+	 * looks complete but is missing entries. The visibility index is also
+	 * built again if it was not committed together with the image data.
+	 *
+	 * @param imageDir   repository directory
+	 * @param durability when changes count as durable
+	 * @throws UncheckedIOException if the file cannot be opened
+	 * @since 2021-01-21
+	 */
+	static final BTreeImageDataStore open(File imageDir,
+			Durability durability) {
+		final File file = new File(imageDir, IMAGEDATA_INDEX_PATH);
+		final File visibilityFile = new File(imageDir, VISIBILITY_INDEX_PATH);
+		
+		try {
+			if (!file.exists()) {
+				// import data saved by the heap store
+				build(visibilityFile, file,
+						HeapImageDataStore.open(imageDir, durability).values(),
+						0);
+			}
+			
+			final BTreeFile tree = BTreeFile.open(file, CACHE_PAGES);
+			try {
+				BTreeFile visibility = visibilityFile.exists()
+						? BTreeFile.open(visibilityFile, CACHE_PAGES)
+						: null;
+				if (visibility == null || visibility.stamp() != tree.stamp()
+						|| tree.stamp() == BTreeFile.PARTIAL_STAMP) {
+					// build name indexes if this store was created without
+					// them, or they may not match the image data
+					if (visibility != null) {
+						visibility.close();
+					}
+					final long stamp = Math.max(tree.stamp(), 0);
+					build(visibilityFile, null, entries(tree), stamp);
+					tree.commit(stamp, true);
+					visibility = BTreeFile.open(visibilityFile, CACHE_PAGES);
+				}
+				return new BTreeImageDataStore(tree, visibility, durability);
+			} catch (IOException | RuntimeException e) {
+				tree.close();
+				throw e;
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Builds a visibility index, and optionally an image data file, from
+	 * {@code entries}. Each file is written under a temporary name, forced onto
+	 * the storage device, then renamed into place, the image data file last.
+	 *
+	 * @param visibilityFile visibility index to build
+	 * @param file           image data file to build, or null to only build
+	 *                       the visibility index
+	 * @param entries        entries to store
+	 * @param stamp          stamp to commit the files with
+	 * @since 2021-01-26
+	 */
+	private static final void build(File visibilityFile, File file,
+			Iterable<ImageEntry> entries, long stamp) throws IOException {
+		final File tempVisibilityFile = tempFile(visibilityFile);
+		final File tempFile = file == null ? null : tempFile(file);
+		try (BTreeFile visibility = BTreeFile.open(tempVisibilityFile,
+				CACHE_PAGES);
+				BTreeFile tree = tempFile == null ? null
+						: BTreeFile.open(tempFile, CACHE_PAGES)) {
+			for (final ImageEntry entry : entries) {
+				if (tree != null) {
+					tree.put(key(entry.getFilename()), encode(entry));
+				}
+				visibility.put(visibilityKey(entry), NO_VALUE);
+			}
+			visibility.commit(stamp, true);
+			if (tree != null) {
+				tree.commit(stamp, true);
+			}
+		}
+		
+		// the logs only matter while the files are being written, and a log
+		// left by the file being replaced must not be applied to the new one
+		Files.deleteIfExists(BTreeFile.logFile(visibilityFile).toPath());
+		Files.move(tempVisibilityFile.toPath(), visibilityFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(BTreeFile.logFile(tempVisibilityFile).toPath());
+		if (tempFile != null) {
+			Files.deleteIfExists(BTreeFile.logFile(file).toPath());
+			Files.move(tempFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			Files.delete(BTreeFile.logFile(tempFile).toPath());
+		}
+	}
+	
+	/**
+	 * @return {@code first} followed by {@code second}
+	 * @since 2021-01-22
+	 */
+	private static final byte[] concat(byte[] first, byte[] second) {
+		final byte[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+	
+	/**
+	 * Decodes an image entry.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final ImageEntry decode(String name, byte[] value) {
+		final Optional<String> owner = (value[0] & HAS_OWNER) != 0
+				? Optional.of(new String(value, 1, value.length - 1,
+						StandardCharsets.UTF_8))
+				: Optional.empty();
+		return ImageEntry.loadImage(name, owner, (value[0] & PUBLIC) != 0);
+	}
+	
+	/**
+	 * @return every entry stored in {@code tree}, decoded as they are iterated
+	 * @since 2021-01-26
+	 */
+	private static final Iterable<ImageEntry> entries(BTreeFile tree) {
+		return () -> {
+			final Iterator<Map.Entry<byte[], byte[]>> entries = tree
+					.iterator(null, true);
+			return new Iterator<ImageEntry>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+				
+				@Override
+				public ImageEntry next() {
+					final Map.Entry<byte[], byte[]> entry = entries.next();
+					return decode(
+							new String(entry.getKey(), StandardCharsets.UTF_8),
+							entry.getValue());
+				}
+			};
+		};
+	}
+	
+	/**
+	 * Encodes an image entry, without its name.
+	 *
+	 * @since 2021-01-21
+	 */
+	private static final byte[] encode(ImageEntry entry) {
+		final byte[] owner = entry.getUser().orElse("")
+				.getBytes(StandardCharsets.UTF_8);
+		final byte[] value = new byte[owner.length + 1];
+		value[0] = (byte) ((entry.isPublic() ? PUBLIC : 0)
+				| (entry.getUser().isPresent() ? HAS_OWNER : 0));
+		System.arraycopy(owner, 0, value, 1, owner.length);
+		return value;
+	}
+	
+	private static final byte[] key(Object name) {
+		return ((String) name).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Iterates over the names in the visibility index with keys that start with
+	 * {@code prefix}.
+	 *
+	 * @since 2021-01-22
+	 */
+	private static final Iterator<String> namesWithPrefix(BTreeFile visibility,
+			byte[] prefix, String after) {
+		final byte[] from = after == null ? prefix
+				: concat(prefix, after.getBytes(StandardCharsets.UTF_8));
+		final Iterator<Map.Entry<byte[], byte[]>> entries = visibility
+				.iterator(from, after == null);
+		
+		return new Iterator<String>() {
+			private String next = this.advance();
+			
+			/**
+			 * @return next name with the prefix, or null if there are no more
+			 * @since 2021-01-22
+			 */
+			private String advance() {
+				if (!entries.hasNext())
+					return null;
+				final byte[] key = entries.next().getKey();
+				if (key.length < prefix.length || !Arrays.equals(key, 0,
+						prefix.length, prefix, 0, prefix.length))
+					return null;
+				return new String(key, prefix.length, key.length - prefix.length,
+						StandardCharsets.UTF_8);
+			}
+			
+			@Override
+			public boolean hasNext() {
+				return this.next != null;
+			}
+			
+			@Override
+			public String next() {
+				if (this.next == null)
+					throw new NoSuchElementException();
+				final String name = this.next;
+				this.next = this.advance();
+				return name;
+			}
+		};
+	}
+	
+	/**
+	 * @return prefix of the visibility index keys of {@code owner}'s private
+	 *         images
+	 * @since 2021-01-22
+	 */
+	private static final byte[] privatePrefix(String owner) {
+		final byte[] ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+		final byte[] prefix = new byte[ownerBytes.length + 2];
+		prefix[0] = 1;
+		System.arraycopy(ownerBytes, 0, prefix, 1, ownerBytes.length);
+		return prefix; // last byte is already zero
+	}
+	
+	/**
+	 * Deletes anything left at the temporary name of {@code file} by an
+	 * interrupted build.
+	 *
+	 * @return temporary name of {@code file}
+	 * @since 2021-01-26
+	 */
+	private static final File tempFile(File file) throws IOException {
+		final File tempFile = new File(file.getPath() + ".tmp");
+		Files.deleteIfExists(tempFile.toPath());
+		Files.deleteIfExists(BTreeFile.logFile(tempFile).toPath());
+		return tempFile;
+	}
+	
+	/**
+	 * @return key of {@code entry} in the visibility index
+	 * @since 2021-01-22
+	 */
+	private static final byte[] visibilityKey(ImageEntry entry) {
+		final byte[] prefix = entry.isPublic() ? PUBLIC_PREFIX
+				: privatePrefix(entry.getUser().get());
+		return concat(prefix, key(entry.getFilename()));
+	}
+	
+	private final BTreeFile tree;
+	
+	/**
+	 * The public and private name indexes.
+	 */
+	private final BTreeFile visibility;
+	
+	/**
+	 * Commits changes to both trees in groups.
+	 */
+	private final GroupCommitter committer;
+	
+	/**
+	 * The stamp of the last group committed to both trees.
+	 */
+	private long stamp;
+	
+	/**
+	 * @param tree       tree storing the image data
+	 * @param visibility tree storing the name indexes
+	 * @param durability when changes count as durable
+	 * @since 2021-01-21
+	 */
+	private BTreeImageDataStore(BTreeFile tree, BTreeFile visibility,
+			Durability durability) {
+		this.tree = tree;
+		this.visibility = visibility;
+		this.stamp = tree.stamp();
+		this.committer = new GroupCommitter(durability, this::commit);
+	}
+	
+	/**
+	 * Checks that {@code entry} and its visibility index key fit in a
+	 * {@link BTreeFile} entry.
+	 *
+	 * @since 2021-01-26
+	 */
+	@Override
+	final void checkEntry(ImageEntry entry) {
+		final int size = Math.max(
+				key(entry.getFilename()).length + encode(entry).length,
+				visibilityKey(entry).length);
+		if (size > BTreeFile.MAX_ENTRY_SIZE)
+			throw new IllegalArgumentException("Image name and owner are too "
+					+ "long; together they can be at most "
+					+ BTreeFile.MAX_ENTRY_SIZE + " bytes.");
+	}
+	
+	/**
+	 * Commits both trees with the stamp of a new group. Changes are
+	 * synchronized, so both trees are committed between operations.
+	 *
+	 * @param sync whether to force the changes onto the storage device
+	 * @since 2021-01-26
+	 */
+	private final synchronized void commit(boolean sync) throws IOException {
+		this.stamp++;
+		this.tree.commit(this.stamp, sync);
+		this.visibility.commit(this.stamp, sync);
+	}
+	
+	@Override
+	public final boolean containsKey(Object key) {
+		return key instanceof String && this.tree.containsKey(key(key));
+	}
+	
+	@Override
+	public final Set<Entry<String, ImageEntry>> entrySet() {
+		return new AbstractSet<Entry<String, ImageEntry>>() {
+			@Override
+			public Iterator<Entry<String, ImageEntry>> iterator() {
+				final Iterator<Map.Entry<byte[], byte[]>> entries = BTreeImageDataStore.this.tree
+						.iterator(null, true);
+				return new Iterator<Entry<String, ImageEntry>>() {
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+					
+					@Override
+					public Entry<String, ImageEntry> next() {
+						final Map.Entry<byte[], byte[]> entry = entries.next();
+						final String name = new String(entry.getKey(),
+								StandardCharsets.UTF_8);
+						return new SimpleImmutableEntry<>(name,
+								decode(name, entry.getValue()));
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return BTreeImageDataStore.this.size();
+			}
+		};
+	}
+	
+	@Override
+	public final ImageEntry get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		
+		final byte[] value = this.tree.get(key(key));
+		return value == null ? null : decode((String) key, value);
+	}
+	
+	@Override
+	final Comparator<String> nameOrder() {
+		return UTF8_ORDER;
+	}
+	
+	@Override
+	final Iterator<String> namesFrom(String from) {
+		final Iterator<Map.Entry<byte[], byte[]>> entries = this.tree
+				.iterator(key(from), true);
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+			
+			@Override
+			public String next() {
+				return new String(entries.next().getKey(), StandardCharsets.UTF_8);
+			}
+		};
+	}
+	
+	@Override
+	final Iterator<String> privateNames(String owner, String after) {
+		return namesWithPrefix(this.visibility, privatePrefix(owner), after);
+	}
+	
+	@Override
+	final Iterator<String> publicNames(String after) {
+		return namesWithPrefix(this.visibility, PUBLIC_PREFIX, after);
+	}
+	
+	@Override
+	public final synchronized ImageEntry put(String key, ImageEntry value) {
+		final ImageEntry oldValue = this.putEntry(key, value);
+		this.committer.commit();
+		return oldValue;
+	}
+	
+	/**
+	 * Adds every entry in {@code entries}, committing them as one group.
+	 *
+	 * @since 2021-01-26
+	 */
+	@Override
+	public final synchronized void putAll(
+			Map<? extends String, ? extends ImageEntry> entries) {
+		for (final Map.Entry<? extends String, ? extends ImageEntry> entry : entries
+				.entrySet()) {
+			this.putEntry(entry.getKey(), entry.getValue());
+		}
+		this.committer.commit();
+	}
+	
+	/**
+	 * Adds an entry to both trees, without committing it.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final ImageEntry putEntry(String key, ImageEntry value) {
+		final byte[] oldBytes = this.tree.put(key(key), encode(value));
+		final ImageEntry oldValue = oldBytes == null ? null
+				: decode(key, oldBytes);
+		
+		if (oldValue != null) {
+			this.visibility.remove(visibilityKey(oldValue));
+		}
+		this.visibility.put(visibilityKey(value), NO_VALUE);
+		return oldValue;
+	}
+	
+	@Override
+	public final synchronized ImageEntry remove(Object key) {
+		if (!(key instanceof String))
+			return null;
+		
+		final ImageEntry oldValue = this.removeEntry((String) key);
+		if (oldValue != null) {
+			this.committer.commit();
+		}
+		return oldValue;
+	}
+	
+	/**
+	 * Removes the entries of every image in {@code names}, committing them as
+	 * one group.
+	 *
+	 * @since 2021-01-26
+	 */
+	@Override
+	final synchronized void removeAll(Collection<String> names) {
+		for (final String name : names) {
+			this.removeEntry(name);
+		}
+		this.committer.commit();
+	}
+	
+	/**
+	 * Removes an entry from both trees, without committing it.
+	 *
+	 * @return removed entry, or null if there was none
+	 * @since 2021-01-26
+	 */
+	private final ImageEntry removeEntry(String key) {
+		final byte[] oldBytes = this.tree.remove(key(key));
+		if (oldBytes == null)
+			return null;
+		
+		final ImageEntry oldValue = decode(key, oldBytes);
+		this.visibility.remove(visibilityKey(oldValue));
+		return oldValue;
+	}
+	
+	/**
+	 * Commits all changes and forces them onto the storage device.
+	 *
+	 * @since 2021-01-21
+	 */
+	@Override
+	final void save() {
+		try {
+			this.commit(true);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public final int size() {
+		return (int) Math.min(this.tree.size(), Integer.MAX_VALUE);
+	}
+	
+	@Override
+	final CompletableFuture<Void> whenDurable() {
+		return this.committer.whenDurable();
+	}
+}
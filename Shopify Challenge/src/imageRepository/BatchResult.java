@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of an operation on many images, listing which images it
+ * succeeded on and why it failed on the others.
+ *
+ * @since 2021-01-26
+ */
+public final class BatchResult {
+	private final List<String> succeeded;
+	
+	private final Map<String, Exception> failures;
+	
+	/**
+	 * @param succeeded names of images the operation succeeded on
+	 * @param failures  exceptions that caused the operation to fail, by name of
+	 *                  image
+	 * @since 2021-01-26
+	 */
+	BatchResult(List<String> succeeded, Map<String, Exception> failures) {
+		this.succeeded = Collections.unmodifiableList(succeeded);
+		this.failures = Collections.unmodifiableMap(failures);
+	}
+	
+	/**
+	 * @return exceptions that caused the operation to fail, by name of image
+	 * @since 2021-01-26
+	 */
+	public final Map<String, Exception> getFailures() {
+		return this.failures;
+	}
+	
+	/**
+	 * @return names of images the operation succeeded on
+	 * @since 2021-01-26
+	 */
+	public final List<String> getSucceeded() {
+		return this.succeeded;
+	}
+	
+	/**
+	 * @return true iff the operation succeeded on every image
+	 * @since 2021-01-26
+	 */
+	public final boolean isSuccessful() {
+		return this.failures.isEmpty();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d succeeded, %d failed", this.succeeded.size(),
+				this.failures.size());
+	}
+}
@@ -0,0 +1,325 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import imageRepository.GroupCommitter.Durability;
+
+/**
+ * Stores images by content, so identical images added under different names
+ * share one file on disk.
+ * <p>
+ * Each distinct file is stored once as a blob in the blobs directory, named
+ * after the SHA-256 digest of its contents. The digest of each image name is
+ * kept in an append-only log (blobrefs.log), with records of the form
+ * {@code +<digest> <name>} when an image is added and {@code -<name>} when it
+ * is removed. A blob is deleted once no image refers to it.
+ * <p>
+ * Images that are not in the log are looked for directly in the repository
+ * directory, so a repository can switch to this store without moving the
+ * images it already has.
+ *
+ * @since 2021-01-26
+ */
+final class BlobImageStore extends ImageStore {
+	static final String BLOB_DIRECTORY_PATH = "blobs";
+	static final String REFS_FILE_PATH = "blobrefs.log";
+	
+	/**
+	 * The log is never compacted while it has fewer records than this.
+	 */
+	private static final int MIN_COMPACTION_RECORDS = 1024;
+	
+	private static final char[] HEX_DIGITS = "0123456789abcdef"
+			.toCharArray();
+	
+	/**
+	 * @return {@code digest} as a hexadecimal string
+	 * @since 2021-01-26
+	 */
+	private static final String hex(byte[] digest) {
+		final char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+		}
+		return new String(hex);
+	}
+	
+	/**
+	 * Opens the blob store of a repository, reading which blob each image
+	 * refers to from its log.
+	 *
+	 * @param imageDir   repository directory
+	 * @param durability when changes to the log count as durable
+	 * @return blob store
+	 * @since 2021-01-26
+	 */
+	static final BlobImageStore open(File imageDir, Durability durability) {
+		final Map<String, String> digests = new HashMap<>();
+		final Journal refs = Journal.open(new File(imageDir, REFS_FILE_PATH),
+				record -> {
+					if (record.startsWith("+")) {
+						final int space = record.indexOf(' ');
+						digests.put(record.substring(space + 1),
+								record.substring(1, space));
+					} else if (record.startsWith("-")) {
+						digests.remove(record.substring(1));
+					} else
+						throw new IllegalStateException(
+								"Invalid " + REFS_FILE_PATH + " record: " + record);
+				}, durability);
+		return new BlobImageStore(imageDir, digests, refs, durability);
+	}
+	
+	private final File directory;
+	
+	private final File blobDirectory;
+	
+	/**
+	 * The digest of each image's blob, by name of image.
+	 */
+	private final Map<String, String> digests;
+	
+	/**
+	 * The number of images referring to each blob, by digest.
+	 */
+	private final Map<String, Integer> refCounts = new HashMap<>();
+	
+	/**
+	 * The log of changes to {@link #digests}.
+	 */
+	private final Journal refs;
+	
+	private final Durability durability;
+	
+	/**
+	 * @param directory  repository directory
+	 * @param digests    digest of each image's blob, by name of image
+	 * @param refs       log of changes to {@code digests}
+	 * @param durability when added images count as durable
+	 * @since 2021-01-26
+	 */
+	private BlobImageStore(File directory, Map<String, String> digests,
+			Journal refs, Durability durability) {
+		this.directory = directory;
+		this.blobDirectory = new File(directory, BLOB_DIRECTORY_PATH);
+		this.digests = digests;
+		this.refs = refs;
+		this.durability = durability;
+		
+		for (final String digest : digests.values()) {
+			this.refCounts.merge(digest, 1, Integer::sum);
+		}
+	}
+	
+	/**
+	 * @return a new SHA-256 digester
+	 * @since 2021-01-26
+	 */
+	private static final MessageDigest newDigester() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new AssertionError();
+		}
+	}
+	
+	/**
+	 * Copies {@code source} into the store, hashing it as it is copied so it is
+	 * only read once. If the store already has a blob with the same contents,
+	 * the copy is discarded and the image refers to the existing blob.
+	 */
+	@Override
+	final void add(String name, Path source) throws IOException {
+		if (this.contains(name))
+			throw new FileAlreadyExistsException(name);
+		
+		final MessageDigest digester = newDigester();
+		Files.createDirectories(this.blobDirectory.toPath());
+		final Path tempFile = Files.createTempFile(this.blobDirectory.toPath(),
+				"blob", ".tmp");
+		try {
+			try (InputStream in = new DigestInputStream(
+					Files.newInputStream(source), digester)) {
+				Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			this.addBlob(name, tempFile, hex(digester.digest()));
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+	
+	/**
+	 * Adds the image {@code name}, moving {@code file} to be its blob unless
+	 * the store already has a blob with the same contents.
+	 *
+	 * @param name   name of image
+	 * @param file   contents of image, in the same file system as the blobs
+	 * @param digest digest of {@code file}
+	 * @since 2021-01-26
+	 */
+	private final void addBlob(String name, Path file, String digest)
+			throws IOException {
+		// a blob must be complete before it has its digest's name, since later
+		// images with the same contents share it
+		final boolean sync = this.durability != Durability.NONE;
+		if (sync) {
+			force(file, file.getParent());
+		}
+		
+		synchronized (this) {
+			if (this.contains(name))
+				throw new FileAlreadyExistsException(name);
+			
+			if (!this.refCounts.containsKey(digest)) {
+				final Path blob = this.blobPath(digest);
+				Files.createDirectories(blob.getParent());
+				Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				if (sync) {
+					force(blob, this.directory.toPath().toAbsolutePath());
+				}
+			}
+			
+			this.digests.put(name, digest);
+			this.refCounts.merge(digest, 1, Integer::sum);
+			this.log("+" + digest + " " + name);
+		}
+	}
+	
+	/**
+	 * @return location of the blob with digest {@code digest}
+	 * @since 2021-01-26
+	 */
+	private final Path blobPath(String digest) {
+		// split blobs between subdirectories so no directory gets too large
+		return Path.of(this.blobDirectory.getAbsolutePath(),
+				digest.substring(0, 2), digest);
+	}
+	
+	/**
+	 * @return true iff the store has an image named {@code name}, either as a
+	 *         blob or directly in the repository directory
+	 * @since 2021-01-26
+	 */
+	private final synchronized boolean contains(String name) {
+		return this.digests.containsKey(name)
+				|| Files.exists(this.directoryPath(name));
+	}
+	
+	/**
+	 * @return location of image {@code name} if it is stored directly in the
+	 *         repository directory
+	 * @since 2021-01-26
+	 */
+	private final Path directoryPath(String name) {
+		return Path.of(this.directory.getAbsolutePath(), name);
+	}
+	
+	/**
+	 * Records a change in the log, compacting the log once it holds more than
+	 * twice as many records as there are images.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void log(String record) {
+		this.refs.append(record);
+		
+		if (this.refs.size() > Math.max(MIN_COMPACTION_RECORDS,
+				2 * this.digests.size())) {
+			try {
+				this.refs.rewrite(() -> {
+					final List<String> records = new ArrayList<>(
+							this.digests.size());
+					for (final Map.Entry<String, String> entry : this.digests
+							.entrySet()) {
+						records.add(
+								"+" + entry.getValue() + " " + entry.getKey());
+					}
+					return records;
+				});
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Hashes {@code source} and moves it to be the image's blob, or leaves it
+	 * if the store already has a blob with the same contents.
+	 */
+	@Override
+	final void move(String name, Path source) throws IOException {
+		if (this.contains(name))
+			throw new FileAlreadyExistsException(name);
+		
+		final MessageDigest digester = newDigester();
+		try (InputStream in = new DigestInputStream(
+				Files.newInputStream(source), digester)) {
+			in.transferTo(OutputStream.nullOutputStream());
+		}
+		this.addBlob(name, source, hex(digester.digest()));
+	}
+	
+	@Override
+	final synchronized Path path(String name) {
+		final String digest = this.digests.get(name);
+		return digest == null ? this.directoryPath(name)
+				: this.blobPath(digest);
+	}
+	
+	/**
+	 * Removes the image {@code name}, deleting its blob if no other image
+	 * refers to it.
+	 */
+	@Override
+	final synchronized void remove(String name) throws IOException {
+		final String digest = this.digests.remove(name);
+		if (digest == null) {
+			Files.delete(this.directoryPath(name));
+			return;
+		}
+		
+		this.log("-" + name);
+		if (this.refCounts.merge(digest, -1, Integer::sum) == 0) {
+			this.refCounts.remove(digest);
+			Files.deleteIfExists(this.blobPath(digest));
+		}
+	}
+	
+	@Override
+	final CompletableFuture<Void> whenDurable() {
+		return this.refs.whenDurable();
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import imageRepository.GroupCommitter.Durability;
+
+/**
+ * Stores each image as a file in the repository directory, under the image's
+ * name.
+ *
+ * @since 2021-01-26
+ */
+final class DirectoryImageStore extends ImageStore {
+	private final File directory;
+	
+	private final FileTransfer transfer;
+	
+	private final Durability durability;
+	
+	/**
+	 * @param directory  directory to store images in
+	 * @param transfer   transfers files into the directory
+	 * @param durability when added images count as durable
+	 * @since 2021-01-26
+	 */
+	DirectoryImageStore(File directory, FileTransfer transfer,
+			Durability durability) {
+		this.directory = directory;
+		this.transfer = transfer;
+		this.durability = durability;
+	}
+	
+	@Override
+	final void add(String name, Path source) throws IOException {
+		final Path path = this.path(name);
+		this.transfer.transfer(source, path);
+		if (this.durability != Durability.NONE) {
+			force(path, path.getParent());
+		}
+	}
+	
+	@Override
+	final void move(String name, Path source) throws IOException {
+		final Path path = this.path(name);
+		if (Files.exists(path))
+			throw new FileAlreadyExistsException(name);
+		
+		Files.move(source, path, StandardCopyOption.ATOMIC_MOVE);
+		if (this.durability != Durability.NONE) {
+			force(path, path.getParent());
+		}
+	}
+	
+	@Override
+	final Path path(String name) {
+		return Path.of(this.directory.getAbsolutePath(), name);
+	}
+	
+	@Override
+	final void remove(String name) throws IOException {
+		Files.delete(this.path(name));
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Copies files into and out of a repository using the cheapest method the
+ * file system supports, and counts how often each method is used.
+ * <p>
+ * If enabled, a file copied into the repository is first hard linked to its
+ * target, which needs no data to be copied at all. Since both names then
+ * refer to the same data, changing the original file changes the repository's
+ * image too, so linking is off unless chosen in the configuration. Files are
+ * never linked out of the repository, since changing a saved copy would then
+ * change the image, or every image sharing its blob. Otherwise, files are
+ * copied with {@link FileChannel#transferTo}, which lets the operating system
+ * copy the data without passing it through Java buffers. Only if neither is
+ * possible is the file copied with {@link Files#copy}.
+ *
+ * @since 2021-01-26
+ */
+public final class FileTransfer {
+	/**
+	 * A method of transferring a file.
+	 *
+	 * @since 2021-01-26
+	 */
+	public static enum Strategy {
+		/** The target was hard linked to the source. */
+		HARD_LINK,
+		/** The data was transferred between file channels. */
+		CHANNEL,
+		/** The data was copied with {@link Files#copy}. */
+		COPY;
+	}
+	
+	/**
+	 * Copies {@code source} to {@code target} with
+	 * {@link FileChannel#transferTo}, deleting {@code target} if the copy
+	 * fails.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final void transferChannels(Path source, Path target)
+			throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			try (FileChannel out = FileChannel.open(target,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				final long size = in.size();
+				long position = 0;
+				while (position < size) {
+					final long transferred = in.transferTo(position,
+							size - position, out);
+					if (transferred == 0) {
+						break; // source was truncated
+					}
+					position += transferred;
+				}
+			} catch (final FileAlreadyExistsException e) {
+				throw e;
+			} catch (final IOException e) {
+				Files.deleteIfExists(target);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Whether files may be hard linked instead of copied.
+	 */
+	private final boolean allowLinks;
+	
+	/**
+	 * The number of transfers that used each strategy.
+	 */
+	private final Map<Strategy, Long> counts = new EnumMap<>(Strategy.class);
+	
+	/**
+	 * @param allowLinks whether files may be hard linked instead of copied
+	 * @since 2021-01-26
+	 */
+	FileTransfer(boolean allowLinks) {
+		this.allowLinks = allowLinks;
+	}
+	
+	/**
+	 * @param strategy strategy to count
+	 * @return number of transfers that have used {@code strategy}
+	 * @since 2021-01-26
+	 */
+	public final synchronized long getTransfers(Strategy strategy) {
+		return this.counts.getOrDefault(strategy, 0L);
+	}
+	
+	/**
+	 * @return true iff files may be hard linked instead of copied
+	 * @since 2021-01-26
+	 */
+	public final boolean isLinkingAllowed() {
+		return this.allowLinks;
+	}
+	
+	/**
+	 * Records that a transfer used {@code strategy}.
+	 *
+	 * @return {@code strategy}
+	 * @since 2021-01-26
+	 */
+	private final synchronized Strategy record(Strategy strategy) {
+		this.counts.merge(strategy, 1L, Long::sum);
+		return strategy;
+	}
+	
+	@Override
+	public final synchronized String toString() {
+		return "FileTransfer [allowLinks=" + this.allowLinks + ", counts="
+				+ this.counts + "]";
+	}
+	
+	/**
+	 * Transfers {@code source} into the repository as {@code target}, which
+	 * must not exist.
+	 *
+	 * @param source file to transfer
+	 * @param target location to transfer to
+	 * @return strategy used
+	 * @throws FileAlreadyExistsException if {@code target} exists
+	 * @throws IOException                if the file cannot be transferred
+	 * @since 2021-01-26
+	 */
+	final Strategy transfer(Path source, Path target) throws IOException {
+		if (this.allowLinks) {
+			try {
+				Files.createLink(target, source);
+				return this.record(Strategy.HARD_LINK);
+			} catch (final FileAlreadyExistsException e) {
+				throw e;
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				// not supported here, e.g. different file systems
+			}
+		}
+		
+		return this.transferOut(source, target);
+	}
+	
+	/**
+	 * Copies {@code source} out of the repository to {@code target}, which must
+	 * not exist. The file is never linked, even if linking is allowed.
+	 *
+	 * @param source file to copy
+	 * @param target location to copy to
+	 * @return strategy used
+	 * @throws FileAlreadyExistsException if {@code target} exists
+	 * @throws IOException                if the file cannot be copied
+	 * @since 2021-01-26
+	 */
+	final Strategy transferOut(Path source, Path target) throws IOException {
+		try {
+			transferChannels(source, target);
+			return this.record(Strategy.CHANNEL);
+		} catch (final UnsupportedOperationException e) {
+			// file system does not support channels
+		}
+		
+		Files.copy(source, target);
+		return this.record(Strategy.COPY);
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the changes to a file durable in groups. Instead of writing each
+ * change to the file as it is made, the changes made within a few milliseconds
+ * of each other are written (and, depending on the {@link Durability},
+ * synchronized onto the storage device) together by a background thread. The
+ * thread making a change does not wait for this unless it needs to, using the
+ * future returned by {@link #commit}.
+ * <p>
+ * Every committer shares one background thread. Changes that have not been
+ * flushed when the Java virtual machine shuts down are flushed then.
+ *
+ * @since 2021-01-26
+ */
+final class GroupCommitter {
+	/**
+	 * When changes count as durable.
+	 *
+	 * @since 2021-01-26
+	 */
+	static enum Durability {
+		/**
+		 * Changes are written by the background thread, but never synchronized,
+		 * so they are lost if the operating system crashes before it writes
+		 * them.
+		 */
+		NONE,
+		/**
+		 * Changes are written and synchronized in groups by the background
+		 * thread.
+		 */
+		BATCH_FSYNC,
+		/**
+		 * Each change is written and synchronized by the thread that made it,
+		 * before it continues.
+		 */
+		PER_OP_FSYNC;
+	}
+	
+	/**
+	 * Writes the changes made since the last flush to a file.
+	 *
+	 * @since 2021-01-26
+	 */
+	@FunctionalInterface
+	static interface Flush {
+		/**
+		 * @param sync if true, the changes must also be synchronized onto the
+		 *             storage device
+		 * @throws IOException if the changes cannot be written
+		 * @since 2021-01-26
+		 */
+		void flush(boolean sync) throws IOException;
+	}
+	
+	/**
+	 * The time between the first change of a group and the group being
+	 * flushed, in milliseconds.
+	 */
+	private static final long FLUSH_DELAY_MILLIS = 5;
+	
+	private static final ScheduledExecutorService FLUSHER = Executors
+			.newSingleThreadScheduledExecutor(task -> {
+				final Thread thread = new Thread(task, "Group commit flusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+	
+	/**
+	 * Committers with changes that have not been flushed.
+	 */
+	private static final Set<GroupCommitter> DIRTY = ConcurrentHashMap
+			.newKeySet();
+	
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			for (final GroupCommitter committer : new ArrayList<>(DIRTY)) {
+				committer.flush();
+			}
+		}, "Group commit shutdown flusher"));
+	}
+	
+	private final Durability durability;
+	
+	private final Flush flush;
+	
+	/**
+	 * Held while flushing, so that groups are flushed one at a time and in
+	 * order.
+	 */
+	private final Object flushLock = new Object();
+	
+	/**
+	 * Completes when the changes not yet being flushed are durable, or null if
+	 * there are no such changes.
+	 */
+	private CompletableFuture<Void> pending = null;
+	
+	/**
+	 * Completes when the changes being flushed are durable, or null if no
+	 * changes are being flushed.
+	 */
+	private CompletableFuture<Void> flushing = null;
+	
+	/**
+	 * @param durability when changes count as durable
+	 * @param flush      writes the changes made since the last flush
+	 * @since 2021-01-26
+	 */
+	GroupCommitter(Durability durability, Flush flush) {
+		this.durability = durability;
+		this.flush = flush;
+	}
+	
+	/**
+	 * Records that a change has been made. It must be ready to be flushed
+	 * before this method is called.
+	 *
+	 * @return future that completes once the change is durable, or completes
+	 *         exceptionally if it could not be flushed
+	 * @since 2021-01-26
+	 */
+	final CompletableFuture<Void> commit() {
+		final CompletableFuture<Void> future;
+		synchronized (this) {
+			if (this.pending == null) {
+				this.pending = new CompletableFuture<>();
+				DIRTY.add(this);
+				if (this.durability != Durability.PER_OP_FSYNC) {
+					FLUSHER.schedule(this::flush, FLUSH_DELAY_MILLIS,
+							TimeUnit.MILLISECONDS);
+				}
+			}
+			future = this.pending;
+		}
+		
+		if (this.durability == Durability.PER_OP_FSYNC) {
+			this.flush();
+		}
+		return future;
+	}
+	
+	/**
+	 * Flushes every change committed so far, without waiting for the
+	 * background thread.
+	 *
+	 * @return future that completes when the changes are durable, which it
+	 *         already has unless they could not be flushed
+	 * @since 2021-01-26
+	 */
+	final CompletableFuture<Void> flush() {
+		synchronized (this.flushLock) {
+			final CompletableFuture<Void> group;
+			synchronized (this) {
+				group = this.pending;
+				this.pending = null;
+				this.flushing = group;
+				DIRTY.remove(this);
+			}
+			if (group == null)
+				return CompletableFuture.completedFuture(null);
+			
+			try {
+				this.flush.flush(this.durability != Durability.NONE);
+				group.complete(null);
+			} catch (final IOException | RuntimeException e) {
+				e.printStackTrace();
+				group.completeExceptionally(e);
+			} finally {
+				synchronized (this) {
+					this.flushing = null;
+				}
+			}
+			return group;
+		}
+	}
+	
+	/**
+	 * @return future that completes once every change committed so far is
+	 *         durable
+	 * @since 2021-01-26
+	 */
+	final synchronized CompletableFuture<Void> whenDurable() {
+		if (this.pending != null)
+			return this.pending;
+		else if (this.flushing != null)
+			return this.flushing;
+		else
+			return CompletableFuture.completedFuture(null);
+	}
+}
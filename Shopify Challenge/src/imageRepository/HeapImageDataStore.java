@@ -0,0 +1,434 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import imageRepository.GroupCommitter.Durability;
+
+/**
+ * An image data store that keeps every entry on the heap.
+ * <p>
+ * The data is saved in imagedata.bin, and changes made since then are appended
+ * to the journal imagedata.log. Once the journal holds more records than there
+ * are images, it is compacted into a new imagedata.bin. This keeps the cost of
+ * each change constant on average while stopping the journal from growing
+ * forever.
+ * <p>
+ * Entries and indexes are kept in concurrent collections, so they can be read
+ * without locking. Changes are serialized, so that each change and its journal
+ * record are made together and a compaction never misses a change. Journal
+ * records are written to disk in groups; see {@link GroupCommitter}.
+ *
+ * @since 2021-01-21
+ */
+final class HeapImageDataStore extends ImageDataStore {
+	static final String IMAGEDATA_FILE_PATH = "imagedata.txt";
+	static final String IMAGEDATA_SNAPSHOT_PATH = "imagedata.bin";
+	static final String IMAGEDATA_JOURNAL_PATH = "imagedata.log";
+	
+	/**
+	 * The journal is never compacted while it has fewer records than this, so
+	 * small repositories do not rewrite their image data too often.
+	 */
+	private static final int MIN_COMPACTION_RECORDS = 1024;
+	
+	/**
+	 * Loads the image data stored in the repository directory {@code imageDir}.
+	 *
+	 * @param imageDir   repository directory
+	 * @param durability when changes count as durable
+	 * @since 2021-01-21
+	 */
+	static final HeapImageDataStore open(File imageDir,
+			Durability durability) {
+		// read imagedata.bin (or imagedata.txt) to get data on images
+		final ConcurrentMap<String, ImageEntry> data = loadImageData(imageDir);
+		
+		// apply changes made since the image data was last saved
+		final Journal journal = Journal.open(
+				new File(imageDir, IMAGEDATA_JOURNAL_PATH),
+				record -> replayImageData(data, record), durability);
+		
+		return new HeapImageDataStore(imageDir, data, journal, durability);
+	}
+	
+	/**
+	 * Loads image data from the repository directory {@code imageDir}. The
+	 * binary snapshot is used if there is one; otherwise the data is imported
+	 * from the text file.
+	 *
+	 * @since 2021-01-19
+	 */
+	static final ConcurrentMap<String, ImageEntry> loadImageData(
+			File imageDir) {
+		final File snapshot = new File(imageDir, IMAGEDATA_SNAPSHOT_PATH);
+		if (!snapshot.exists())
+			return loadImageDataText(new File(imageDir, IMAGEDATA_FILE_PATH));
+		
+		final ConcurrentMap<String, ImageEntry> data = new ConcurrentHashMap<>();
+		try {
+			ImageDataSnapshot.read(snapshot,
+					entry -> data.put(entry.getFilename(), entry));
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		return data;
+	}
+	
+	/**
+	 * Loads image data from the text file {@code file}. Large files are parsed
+	 * in parallel.
+	 *
+	 * @throws MalformedFileException if any lines in the file are malformed
+	 * @since 2021-01-17
+	 */
+	private static final ConcurrentMap<String, ImageEntry> loadImageDataText(
+			File file) {
+		final ConcurrentMap<String, ImageEntry> data = new ConcurrentHashMap<>();
+		
+		// return empty map if no image data found
+		if (!file.exists())
+			return data;
+		
+		try {
+			// insert entries into database
+			for (final ImageEntry entry : ParallelLineReader.read(file,
+					ImageEntry::fromString)) {
+				data.put(entry.getFilename(), entry);
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Applies one image data journal record to {@code data}. Records are either
+	 * '+' followed by an encoded {@link ImageEntry} (the entry was added) or '-'
+	 * followed by an image name (the image was removed).
+	 *
+	 * @param data   image data to update
+	 * @param record journal record
+	 * @since 2021-01-18
+	 */
+	static final void replayImageData(Map<String, ImageEntry> data,
+			String record) {
+		final String contents = record.substring(1);
+		switch (record.charAt(0)) {
+		case '+':
+			final ImageEntry entry = ImageEntry.fromString(contents);
+			data.put(entry.getFilename(), entry);
+			break;
+		case '-':
+			data.remove(contents);
+			break;
+		default:
+			throw new IllegalStateException("Invalid imagedata.log record.");
+		}
+	}
+	
+	/**
+	 * @return elements of {@code names} after {@code after}, or all of them if
+	 *         {@code after} is null
+	 * @since 2021-01-22
+	 */
+	private static final NavigableSet<String> tail(NavigableSet<String> names,
+			String after) {
+		return after == null ? names : names.tailSet(after, false);
+	}
+	
+	private final File directory;
+	
+	private final ConcurrentMap<String, ImageEntry> data;
+	
+	/**
+	 * The names of all images, in order.
+	 */
+	private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+	
+	/**
+	 * The names of all public images.
+	 */
+	private final NavigableSet<String> publicNames =
+			new ConcurrentSkipListSet<>();
+	
+	/**
+	 * The names of each user's private images, by username.
+	 */
+	private final Map<String, NavigableSet<String>> privateNames =
+			new ConcurrentHashMap<>();
+	
+	/**
+	 * Changes to the image data that have not yet been written to
+	 * imagedata.bin.
+	 */
+	private final Journal journal;
+	
+	private final Durability durability;
+	
+	/**
+	 * @param directory  directory where images and data are stored
+	 * @param data       image data
+	 * @param journal    journal of changes not yet in imagedata.bin
+	 * @param durability when changes count as durable
+	 * @since 2021-01-21
+	 */
+	private HeapImageDataStore(File directory,
+			ConcurrentMap<String, ImageEntry> data, Journal journal,
+			Durability durability) {
+		this.directory = directory;
+		this.data = data;
+		this.journal = journal;
+		this.durability = durability;
+		
+		for (final ImageEntry entry : data.values()) {
+			this.index(entry);
+		}
+	}
+	
+	@Override
+	public final boolean containsKey(Object key) {
+		return this.data.containsKey(key);
+	}
+	
+	@Override
+	public final Set<Entry<String, ImageEntry>> entrySet() {
+		return Collections.unmodifiableSet(this.data.entrySet());
+	}
+	
+	@Override
+	public final ImageEntry get(Object key) {
+		return this.data.get(key);
+	}
+	
+	/**
+	 * Adds an entry to the name indexes.
+	 *
+	 * @since 2021-01-22
+	 */
+	private final void index(ImageEntry entry) {
+		this.names.add(entry.getFilename());
+		if (entry.isPublic()) {
+			this.publicNames.add(entry.getFilename());
+		} else {
+			this.privateNames
+					.computeIfAbsent(entry.getUser().get(),
+							user -> new ConcurrentSkipListSet<>())
+					.add(entry.getFilename());
+		}
+	}
+	
+	/**
+	 * Records a change to the image data in the journal, compacting the journal
+	 * into imagedata.bin once it holds more records than the repository has
+	 * images.
+	 *
+	 * @param records journal records describing the changes
+	 * @since 2021-01-18
+	 */
+	private final void logImageData(Collection<String> records) {
+		this.journal.appendAll(records);
+		
+		if (this.journal.size() > Math.max(MIN_COMPACTION_RECORDS,
+				this.data.size())) {
+			this.save();
+		}
+	}
+	
+	@Override
+	final Comparator<String> nameOrder() {
+		return Comparator.naturalOrder();
+	}
+	
+	@Override
+	final Iterator<String> namesFrom(String from) {
+		return this.names.tailSet(from, true).iterator();
+	}
+	
+	@Override
+	final Iterator<String> privateNames(String owner, String after) {
+		final NavigableSet<String> names = this.privateNames.get(owner);
+		if (names == null)
+			return Collections.emptyIterator();
+		else
+			return tail(names, after).iterator();
+	}
+	
+	@Override
+	final Iterator<String> publicNames(String after) {
+		return tail(this.publicNames, after).iterator();
+	}
+	
+	@Override
+	public final synchronized ImageEntry put(String key, ImageEntry value) {
+		final ImageEntry oldValue = this.data.put(key, value);
+		if (oldValue != null) {
+			this.unindex(oldValue);
+		}
+		this.index(value);
+		this.logImageData(Collections.singletonList("+" + value));
+		return oldValue;
+	}
+	
+	/**
+	 * Adds every entry in {@code entries}, recording them in the journal with a
+	 * single write.
+	 *
+	 * @since 2021-01-26
+	 */
+	@Override
+	public final synchronized void putAll(
+			Map<? extends String, ? extends ImageEntry> entries) {
+		final List<String> records = new ArrayList<>(entries.size());
+		for (final Map.Entry<? extends String, ? extends ImageEntry> entry : entries
+				.entrySet()) {
+			final ImageEntry oldValue = this.data.put(entry.getKey(),
+					entry.getValue());
+			if (oldValue != null) {
+				this.unindex(oldValue);
+			}
+			this.index(entry.getValue());
+			records.add("+" + entry.getValue());
+		}
+		
+		if (!records.isEmpty()) {
+			this.logImageData(records);
+		}
+	}
+	
+	@Override
+	public final synchronized ImageEntry remove(Object key) {
+		final ImageEntry oldValue = this.data.remove(key);
+		if (oldValue != null) {
+			this.unindex(oldValue);
+			this.logImageData(Collections.singletonList("-" + key));
+		}
+		return oldValue;
+	}
+	
+	/**
+	 * Removes the entries of every image in {@code names}, recording them in the
+	 * journal with a single write.
+	 *
+	 * @since 2021-01-26
+	 */
+	@Override
+	final synchronized void removeAll(Collection<String> names) {
+		final List<String> records = new ArrayList<>(names.size());
+		for (final String name : names) {
+			final ImageEntry oldValue = this.data.remove(name);
+			if (oldValue != null) {
+				this.unindex(oldValue);
+				records.add("-" + name);
+			}
+		}
+		
+		if (!records.isEmpty()) {
+			this.logImageData(records);
+		}
+	}
+	
+	/**
+	 * Saves all image data to imagedata.bin, then clears the journal since its
+	 * changes are now in the snapshot. The data is written to a temporary file
+	 * that replaces imagedata.bin when complete, so an interrupted save cannot
+	 * lose data.
+	 *
+	 * @since 2021-01-17
+	 */
+	@Override
+	final synchronized void save() {
+		final File file = new File(this.directory, IMAGEDATA_SNAPSHOT_PATH);
+		final File tempFile = new File(this.directory,
+				IMAGEDATA_SNAPSHOT_PATH + ".tmp");
+		
+		try {
+			ImageDataSnapshot.write(tempFile, this.data.values());
+			
+			// the journal is cleared next, so the snapshot must be durable first
+			if (this.durability != Durability.NONE) {
+				try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+						StandardOpenOption.WRITE)) {
+					channel.force(false);
+				}
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		try {
+			Files.move(tempFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		this.journal.clear();
+	}
+	
+	@Override
+	public final int size() {
+		return this.data.size();
+	}
+	
+	/**
+	 * Removes an entry from the name indexes.
+	 *
+	 * @since 2021-01-22
+	 */
+	private final void unindex(ImageEntry entry) {
+		this.names.remove(entry.getFilename());
+		if (entry.isPublic()) {
+			this.publicNames.remove(entry.getFilename());
+		} else {
+			final String owner = entry.getUser().get();
+			final NavigableSet<String> names = this.privateNames.get(owner);
+			names.remove(entry.getFilename());
+			if (names.isEmpty()) {
+				this.privateNames.remove(owner);
+			}
+		}
+	}
+	
+	@Override
+	final CompletableFuture<Void> whenDurable() {
+		return this.journal.whenDurable();
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an action on many images, with a bounded number of actions running at
+ * the same time. Each action runs on its own virtual thread if the Java
+ * runtime supports them, or on a pool of threads otherwise.
+ * <p>
+ * A batch can be cancelled by interrupting the thread that runs it. Actions
+ * that have already started are allowed to finish, since most cannot be
+ * stopped part way without leaving partial files behind, but no more are
+ * started; the images they would have run on fail with a
+ * {@link CancellationException}.
+ *
+ * @since 2021-01-26
+ */
+final class ImageBatch {
+	/**
+	 * An action run on one image of a batch.
+	 *
+	 * @since 2021-01-26
+	 */
+	@FunctionalInterface
+	interface Action {
+		/**
+		 * @param name name of image
+		 * @throws IOException if the action fails
+		 * @since 2021-01-26
+		 */
+		void run(String name) throws IOException;
+	}
+	
+	/**
+	 * Runs {@code action} on every image in {@code names}. An image named more
+	 * than once is only run on once, and is listed once in the result, since
+	 * running on it again could only fail or repeat the work.
+	 *
+	 * @param names    names of images
+	 * @param threads  maximum number of actions to run at the same time
+	 * @param listener listener notified as each action finishes, may be null
+	 * @param action   action to run
+	 * @return which actions succeeded, in the order of {@code names} without
+	 *         duplicates, and why the others failed
+	 * @since 2021-01-26
+	 */
+	static final BatchResult run(Collection<String> names, int threads,
+			ProgressListener listener, Action action) {
+		final Set<String> distinct = new LinkedHashSet<>(names);
+		final Map<String, Exception> failures = new ConcurrentHashMap<>();
+		final AtomicInteger completed = new AtomicInteger();
+		final int concurrency = Math.max(1, Math.min(threads,
+				distinct.size()));
+		final Semaphore running = new Semaphore(concurrency);
+		
+		final ExecutorService executor = ImageServer.newExecutor(concurrency);
+		boolean interrupted = false;
+		try {
+			for (final String name : distinct) {
+				if (!interrupted) {
+					try {
+						running.acquire();
+					} catch (final InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					failures.put(name,
+							new CancellationException("Batch cancelled."));
+					if (listener != null) {
+						listener.progress(completed.incrementAndGet(),
+								distinct.size());
+					}
+					continue;
+				}
+				
+				executor.execute(() -> {
+					try {
+						action.run(name);
+					} catch (final IOException | RuntimeException e) {
+						failures.put(name, e);
+					} finally {
+						running.release();
+					}
+					
+					if (listener != null) {
+						listener.progress(completed.incrementAndGet(),
+								distinct.size());
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		// wait for every action, even if cancelled, so none are still running
+		// when this returns
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		final List<String> succeeded = new ArrayList<>();
+		final Map<String, Exception> orderedFailures = new LinkedHashMap<>();
+		for (final String name : distinct) {
+			final Exception failure = failures.get(name);
+			if (failure == null) {
+				succeeded.add(name);
+			} else {
+				orderedFailures.put(name, failure);
+			}
+		}
+		return new BatchResult(succeeded, orderedFailures);
+	}
+	
+	private ImageBatch() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of decoded images, limited by the memory the images use rather than
+ * by their number. When the cache is full, the least recently used images are
+ * evicted first.
+ * <p>
+ * The cost of an image is the size of the buffer holding its pixels. Images
+ * that cost more than the whole cache are never cached.
+ *
+ * @since 2021-01-24
+ */
+public final class ImageCache {
+	/**
+	 * @return number of bytes used by {@code image}'s pixels, measured from
+	 *         the buffer that holds them, since images may store more than
+	 *         their color model's pixel size suggests (or pack several pixels
+	 *         into one byte)
+	 * @since 2021-01-24
+	 */
+	static final long cost(BufferedImage image) {
+		final DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks()
+				* (DataBuffer.getDataTypeSize(buffer.getDataType()) / 8);
+	}
+	
+	/**
+	 * Cached images, least recently used first.
+	 */
+	private final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<>(
+			16, 0.75f, true);
+	
+	private final long maxBytes;
+	
+	private long bytes = 0;
+	
+	private long hits = 0;
+	
+	private long misses = 0;
+	
+	private long evictions = 0;
+	
+	/**
+	 * @param maxBytes maximum total cost of the cached images
+	 * @since 2021-01-24
+	 */
+	ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Gets an image from the cache, counting a hit or a miss.
+	 *
+	 * @param name name of image
+	 * @return cached image, or null if it is not cached
+	 * @since 2021-01-24
+	 */
+	final synchronized BufferedImage get(String name) {
+		final BufferedImage image = this.images.get(name);
+		if (image == null) {
+			this.misses++;
+		} else {
+			this.hits++;
+		}
+		return image;
+	}
+	
+	/**
+	 * @return total cost of the images in the cache
+	 * @since 2021-01-24
+	 */
+	public final synchronized long getBytes() {
+		return this.bytes;
+	}
+	
+	/**
+	 * @return number of images evicted to make room for others
+	 * @since 2021-01-24
+	 */
+	public final synchronized long getEvictions() {
+		return this.evictions;
+	}
+	
+	/**
+	 * @return number of times a requested image was in the cache
+	 * @since 2021-01-24
+	 */
+	public final synchronized long getHits() {
+		return this.hits;
+	}
+	
+	/**
+	 * @return maximum total cost of the images in the cache
+	 * @since 2021-01-24
+	 */
+	public final long getMaxBytes() {
+		return this.maxBytes;
+	}
+	
+	/**
+	 * @return number of times a requested image was not in the cache
+	 * @since 2021-01-24
+	 */
+	public final synchronized long getMisses() {
+		return this.misses;
+	}
+	
+	/**
+	 * @return number of images in the cache
+	 * @since 2021-01-24
+	 */
+	public final synchronized int getSize() {
+		return this.images.size();
+	}
+	
+	/**
+	 * Removes an image from the cache, if it is cached.
+	 *
+	 * @param name name of image
+	 * @since 2021-01-24
+	 */
+	final synchronized void invalidate(String name) {
+		final BufferedImage removed = this.images.remove(name);
+		if (removed != null) {
+			this.bytes -= cost(removed);
+		}
+	}
+	
+	/**
+	 * Gets an image from the cache without counting a hit or a miss, for
+	 * lookups that are not requests for the image itself, like checking again
+	 * after a miss or looking for an image to scale.
+	 *
+	 * @param name name of image
+	 * @return cached image, or null if it is not cached
+	 * @since 2021-01-26
+	 */
+	final synchronized BufferedImage peek(String name) {
+		return this.images.get(name);
+	}
+	
+	/**
+	 * Adds an image to the cache, evicting the least recently used images until
+	 * it fits.
+	 *
+	 * @param name  name of image
+	 * @param image decoded image
+	 * @since 2021-01-24
+	 */
+	final synchronized void put(String name, BufferedImage image) {
+		final long cost = cost(image);
+		if (cost > this.maxBytes)
+			return;
+		
+		this.invalidate(name);
+		
+		final Iterator<Map.Entry<String, BufferedImage>> entries = this.images
+				.entrySet().iterator();
+		while (this.bytes + cost > this.maxBytes && entries.hasNext()) {
+			this.bytes -= cost(entries.next().getValue());
+			entries.remove();
+			this.evictions++;
+		}
+		
+		this.images.put(name, image);
+		this.bytes += cost;
+	}
+	
+	@Override
+	public final synchronized String toString() {
+		return String.format(
+				"ImageCache[%d images, %d/%d bytes, %d hits, %d misses, %d evictions]",
+				this.images.size(), this.bytes, this.maxBytes, this.hits,
+				this.misses, this.evictions);
+	}
+}
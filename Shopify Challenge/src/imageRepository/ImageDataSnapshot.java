@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Reads and writes the binary image data snapshot (imagedata.bin).
+ * <p>
+ * The snapshot starts with a magic number and a format version. Next is a
+ * dictionary of every owner's username, so each username is stored once no
+ * matter how many images that user owns. Last are the entries themselves: each
+ * is a length-prefixed UTF-8 filename followed by one int, holding the index of
+ * the owner in the dictionary (plus one, so that zero means anonymous) shifted
+ * left by one, with the lowest bit set iff the image is public.
+ * <p>
+ * Snapshots are read through a memory mapping and decoded entry by entry, so
+ * loading one does not need to split lines or copy the file onto the heap.
+ *
+ * @since 2021-01-19
+ */
+final class ImageDataSnapshot {
+	/**
+	 * The first four bytes of every snapshot ("IRDB").
+	 */
+	private static final int MAGIC = 0x49524442;
+	
+	/**
+	 * The version of the snapshot format written by this class.
+	 */
+	private static final int VERSION = 1;
+	
+	/**
+	 * Reads a snapshot, passing every entry in it to {@code action}.
+	 *
+	 * @param file   snapshot file
+	 * @param action action to run on each entry
+	 * @throws IOException           if the file cannot be read
+	 * @throws IllegalStateException if the file is not a valid snapshot
+	 * @since 2021-01-19
+	 */
+	static final void read(File file, Consumer<ImageEntry> action)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			final ByteBuffer buffer = channel
+					.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			if (buffer.getInt() != MAGIC)
+				throw new IllegalStateException("Invalid imagedata.bin file.");
+			final int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IllegalStateException(
+						"Unsupported imagedata.bin version " + version + ".");
+			
+			// read owner dictionary
+			final int ownerCount = buffer.getInt();
+			final List<Optional<String>> owners = new ArrayList<>(ownerCount + 1);
+			owners.add(Optional.empty());
+			for (int i = 0; i < ownerCount; i++) {
+				owners.add(Optional.of(readString(buffer)));
+			}
+			
+			// read entries
+			final int entryCount = buffer.getInt();
+			for (int i = 0; i < entryCount; i++) {
+				final String filename = readString(buffer);
+				final int ownerAndVisibility = buffer.getInt();
+				final Optional<String> owner = owners
+						.get(ownerAndVisibility >>> 1);
+				final boolean isPublic = (ownerAndVisibility & 1) != 0;
+				
+				action.accept(ImageEntry.loadImage(filename, owner, isPublic));
+			}
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IllegalStateException("Truncated imagedata.bin file.", e);
+		}
+	}
+	
+	/**
+	 * Reads a length-prefixed UTF-8 string.
+	 *
+	 * @since 2021-01-19
+	 */
+	private static final String readString(ByteBuffer buffer) {
+		final byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Writes a snapshot containing {@code entries} to {@code file}, replacing
+	 * anything already in it.
+	 *
+	 * @param file    file to write to
+	 * @param entries entries to write
+	 * @throws IOException if the file cannot be written
+	 * @since 2021-01-19
+	 */
+	static final void write(File file, Collection<ImageEntry> entries)
+			throws IOException {
+		// build owner dictionary
+		final Map<String, Integer> ownerIndices = new LinkedHashMap<>();
+		for (final ImageEntry entry : entries) {
+			entry.getUser().ifPresent(
+					user -> ownerIndices.putIfAbsent(user, ownerIndices.size() + 1));
+		}
+		
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			
+			out.writeInt(ownerIndices.size());
+			for (final String owner : ownerIndices.keySet()) {
+				writeString(out, owner);
+			}
+			
+			out.writeInt(entries.size());
+			for (final ImageEntry entry : entries) {
+				writeString(out, entry.getFilename());
+				final int ownerIndex = entry.getUser().map(ownerIndices::get)
+						.orElse(0);
+				out.writeInt(ownerIndex << 1 | (entry.isPublic() ? 1 : 0));
+			}
+		}
+	}
+	
+	/**
+	 * Writes a length-prefixed UTF-8 string.
+	 *
+	 * @throws IllegalArgumentException if the string is too long to be stored
+	 * @since 2021-01-19
+	 */
+	private static final void writeString(DataOutputStream out, String string)
+			throws IOException {
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF)
+			throw new IllegalArgumentException("String too long: " + string);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+	
+	private ImageDataSnapshot() {
+		throw new AssertionError();
+	}
+}
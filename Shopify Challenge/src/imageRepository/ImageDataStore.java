@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores the data of every image in a repository, mapping image names to
+ * their entries. Every change made through {@link #put} or {@link #remove} is
+ * persisted by the store itself.
+ * <p>
+ * Stores also keep two indexes up to date as entries change: one of the names
+ * of public images, and one for each user of the names of that user's private
+ * images. These let the images visible to a user be listed without looking at
+ * any other images.
+ * <p>
+ * Stores may be used by several threads at the same time.
+ *
+ * @since 2021-01-21
+ */
+abstract class ImageDataStore extends AbstractMap<String, ImageEntry> {
+	/**
+	 * An iterator that merges two sorted iterators with no elements in common
+	 * into one sorted iterator.
+	 *
+	 * @since 2021-01-22
+	 */
+	private static final class MergingIterator implements Iterator<String> {
+		private final Iterator<String> first;
+		private final Iterator<String> second;
+		private final Comparator<String> order;
+		private String nextFirst;
+		private String nextSecond;
+		
+		/**
+		 * @since 2021-01-22
+		 */
+		private MergingIterator(Iterator<String> first, Iterator<String> second,
+				Comparator<String> order) {
+			this.first = first;
+			this.second = second;
+			this.order = order;
+			this.nextFirst = first.hasNext() ? first.next() : null;
+			this.nextSecond = second.hasNext() ? second.next() : null;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.nextFirst != null || this.nextSecond != null;
+		}
+		
+		@Override
+		public String next() {
+			if (!this.hasNext())
+				throw new NoSuchElementException();
+			
+			final String next;
+			if (this.nextSecond == null || this.nextFirst != null
+					&& this.order.compare(this.nextFirst, this.nextSecond) < 0) {
+				next = this.nextFirst;
+				this.nextFirst = this.first.hasNext() ? this.first.next() : null;
+			} else {
+				next = this.nextSecond;
+				this.nextSecond = this.second.hasNext() ? this.second.next() : null;
+			}
+			return next;
+		}
+	}
+	
+	/**
+	 * Checks that {@code entry} can be stored, so that images are not added
+	 * only to have their data rejected. This implementation accepts every
+	 * entry.
+	 *
+	 * @param entry entry to check
+	 * @throws IllegalArgumentException if the entry is too large to store
+	 * @since 2021-01-26
+	 */
+	void checkEntry(ImageEntry entry) {}
+	
+	/**
+	 * @return order in which this store iterates over image names
+	 * @since 2021-01-22
+	 */
+	abstract Comparator<String> nameOrder();
+	
+	/**
+	 * Iterates over the names of every image, in {@link #nameOrder}, starting
+	 * at {@code from}. Since names with the same prefix are next to each other,
+	 * this finds every name with a prefix without looking at any others.
+	 *
+	 * @param from name to start at, included if it is present
+	 * @return iterator over names
+	 * @since 2021-01-26
+	 */
+	abstract Iterator<String> namesFrom(String from);
+	
+	/**
+	 * Iterates over the names of the private images owned by {@code owner}, in
+	 * {@link #nameOrder}.
+	 *
+	 * @param owner username of owner
+	 * @param after name to start after, or null to start at the first name
+	 * @return iterator over names
+	 * @since 2021-01-22
+	 */
+	abstract Iterator<String> privateNames(String owner, String after);
+	
+	/**
+	 * Iterates over the names of the public images, in {@link #nameOrder}.
+	 *
+	 * @param after name to start after, or null to start at the first name
+	 * @return iterator over names
+	 * @since 2021-01-22
+	 */
+	abstract Iterator<String> publicNames(String after);
+	
+	/**
+	 * @return future that completes once every change made so far is durable
+	 * @since 2021-01-26
+	 */
+	abstract CompletableFuture<Void> whenDurable();
+	
+	/**
+	 * Iterates over the names of the images visible to {@code username}, in
+	 * {@link #nameOrder}. These are the public images along with the user's own
+	 * private images.
+	 *
+	 * @param username user to list images for; null for no user
+	 * @param after    name to start after, or null to start at the first name
+	 * @return iterator over names
+	 * @since 2021-01-22
+	 */
+	final Iterator<String> visibleNames(String username, String after) {
+		if (username == null)
+			return this.publicNames(after);
+		else
+			return new MergingIterator(this.publicNames(after),
+					this.privateNames(username, after), this.nameOrder());
+	}
+	
+	/**
+	 * Removes the entries of every image in {@code names}. Stores should
+	 * persist the removals together if they can, which this implementation does
+	 * not.
+	 *
+	 * @param names names of images to remove
+	 * @since 2021-01-26
+	 */
+	void removeAll(Collection<String> names) {
+		for (final String name : names) {
+			this.remove(name);
+		}
+	}
+	
+	/**
+	 * Saves all image data, leaving the store in a state that is as fast as
+	 * possible to open.
+	 *
+	 * @since 2021-01-21
+	 */
+	abstract void save();
+}
@@ -24,6 +24,30 @@ import java.util.Optional;
  * @since 2021-01-17
  */
 public final class ImageEntry {
+	/**
+	 * Gets an image entry from an encoded string, as produced by
+	 * {@link #toString}.
+	 *
+	 * @param entryString encoded entry
+	 * @return image entry
+	 * @throws IllegalArgumentException if the string is incorrectly formatted
+	 * @since 2021-01-18
+	 */
+	public static final ImageEntry fromString(String entryString) {
+		final String[] parts = entryString.split(":", -1);
+		if (parts.length != 3)
+			throw new IllegalArgumentException("Incorrectly formatted string.");
+		
+		final String name = parts[0];
+		final String username = parts[1];
+		final boolean isPublic = "public".equals(parts[2]);
+		
+		if (username.isEmpty())
+			return loadImage(name);
+		else
+			return loadImage(name, username, isPublic);
+	}
+	
 	/**
 	 * Gets an image entry, uploaded by an anonymous user.
 	 *
@@ -49,6 +73,21 @@ public final class ImageEntry {
 		return new ImageEntry(filename, Optional.of(user), isPublic);
 	}
 	
+	/**
+	 * Gets an image entry whose owner, if any, is already wrapped in an
+	 * {@code Optional}. This lets many entries share the same owner object.
+	 *
+	 * @param filename filename of image
+	 * @param user     user that uploaded the image, or empty if anonymous
+	 * @param isPublic whether image is public or not
+	 * @return image entry
+	 * @since 2021-01-19
+	 */
+	static final ImageEntry loadImage(String filename, Optional<String> user,
+			boolean isPublic) {
+		return new ImageEntry(filename, user, isPublic || !user.isPresent());
+	}
+	
 	/**
 	 * The filename of the image, relative to the image directory. For example,
 	 * 'my-image.png'.
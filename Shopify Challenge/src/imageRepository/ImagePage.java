@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * One page of image names, returned by
+ * {@link ImageRepository#imagePage(String, int, String)}.
+ *
+ * @since 2021-01-23
+ */
+public final class ImagePage {
+	private final List<String> names;
+	
+	private final Optional<String> nextCursor;
+	
+	/**
+	 * @param names      names on this page
+	 * @param nextCursor cursor of the next page, or empty if this is the last
+	 *                   page
+	 * @since 2021-01-23
+	 */
+	ImagePage(List<String> names, Optional<String> nextCursor) {
+		this.names = Collections.unmodifiableList(names);
+		this.nextCursor = nextCursor;
+	}
+	
+	/**
+	 * @return names on this page, in order
+	 * @since 2021-01-23
+	 */
+	public final List<String> getNames() {
+		return this.names;
+	}
+	
+	/**
+	 * @return cursor to pass to
+	 *         {@link ImageRepository#imagePage(String, int, String)} to get the
+	 *         next page, or empty if this is the last page
+	 * @since 2021-01-23
+	 */
+	public final Optional<String> getNextCursor() {
+		return this.nextCursor;
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Loads the previews of the images next to the selected one in a list before
+ * they are selected, so that browsing the list one image at a time does not
+ * wait for each image to be read.
+ * <p>
+ * Previews are loaded one at a time on a low-priority background thread, and
+ * at most {@code 2 * distance + 1} of them are kept. Prefetching only happens
+ * while the user moves through the list one step at a time; jumping to an
+ * image elsewhere in the list cancels any previews that have not been loaded
+ * yet. A preview that was being loaded when it was {@linkplain #remove
+ * removed} or {@linkplain #clear cleared} is thrown away once it is loaded,
+ * since it may be of the old image.
+ *
+ * @since 2021-01-26
+ */
+final class ImagePrefetcher {
+	/**
+	 * Loads previews.
+	 */
+	private final Function<String, Image> loader;
+	
+	/**
+	 * The number of images on each side of the selected one to prefetch.
+	 */
+	private final int distance;
+	
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor(task -> {
+				final Thread thread = new Thread(task, "Image prefetcher");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+	
+	/**
+	 * Previews that have been loaded, least recently used first.
+	 */
+	private final Map<String, Image> previews;
+	
+	/**
+	 * The number of times previews have been forgotten, guarded by
+	 * {@link #previews}. A prefetch only keeps its preview if this has not
+	 * changed since it started loading it.
+	 */
+	private long generation = 0;
+	
+	/**
+	 * Prefetches that have been requested but may not have finished.
+	 */
+	private final List<Future<?>> pending = new ArrayList<>();
+	
+	/**
+	 * The index of the last image selected, or -1 if none is.
+	 */
+	private int lastIndex = -1;
+	
+	/**
+	 * @param loader   function that loads the preview of an image, returning
+	 *                 null if it cannot be loaded
+	 * @param distance number of images on each side of the selected one to
+	 *                 prefetch
+	 * @since 2021-01-26
+	 */
+	ImagePrefetcher(Function<String, Image> loader, int distance) {
+		this.loader = loader;
+		this.distance = distance;
+		
+		final int capacity = 2 * distance + 1;
+		this.previews = new LinkedHashMap<String, Image>(capacity * 2, 0.75f,
+				true) {
+			private static final long serialVersionUID = -4838251379426314290L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+				return this.size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Cancels every pending prefetch.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void cancelPending() {
+		for (final Future<?> future : this.pending) {
+			future.cancel(false);
+		}
+		this.pending.clear();
+	}
+	
+	/**
+	 * Forgets every prefetched preview, for example because the list has been
+	 * reloaded.
+	 *
+	 * @since 2021-01-26
+	 */
+	final void clear() {
+		this.cancelPending();
+		this.lastIndex = -1;
+		synchronized (this.previews) {
+			this.generation++;
+			this.previews.clear();
+		}
+	}
+	
+	/**
+	 * @param name name of image
+	 * @return prefetched preview of image, or null if it has not been
+	 *         prefetched
+	 * @since 2021-01-26
+	 */
+	final Image get(String name) {
+		synchronized (this.previews) {
+			return this.previews.get(name);
+		}
+	}
+	
+	/**
+	 * Prefetches the preview of one image, unless it already has been.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void prefetch(String name) {
+		this.pending.add(this.executor.submit(() -> {
+			final long startGeneration;
+			synchronized (this.previews) {
+				if (this.previews.containsKey(name))
+					return;
+				startGeneration = this.generation;
+			}
+			
+			final Image preview = this.loader.apply(name);
+			if (preview != null) {
+				synchronized (this.previews) {
+					if (this.generation == startGeneration) {
+						this.previews.put(name, preview);
+					}
+				}
+			}
+		}));
+	}
+	
+	/**
+	 * Forgets the prefetched preview of an image, for example because it has
+	 * been removed.
+	 *
+	 * @since 2021-01-26
+	 */
+	final void remove(String name) {
+		synchronized (this.previews) {
+			this.generation++;
+			this.previews.remove(name);
+		}
+	}
+	
+	/**
+	 * Called when the selection of the list changes. If the image selected is
+	 * next to the one selected before, the images after it in the direction
+	 * the user is moving are prefetched, followed by the images before it.
+	 *
+	 * @param names names of images in list
+	 * @param index index of the only selected image, or -1 if zero or several
+	 *              images are selected
+	 * @since 2021-01-26
+	 */
+	final void selected(List<String> names, int index) {
+		final int previousIndex = this.lastIndex;
+		this.lastIndex = index;
+		
+		this.cancelPending();
+		final int step = index - previousIndex;
+		if (index < 0 || previousIndex < 0 || Math.abs(step) != 1)
+			return;
+		
+		// the images ahead are more likely to be selected next
+		for (int i = 1; i <= this.distance; i++) {
+			final int ahead = index + i * step;
+			if (ahead >= 0 && ahead < names.size()) {
+				this.prefetch(names.get(ahead));
+			}
+		}
+		for (int i = 1; i <= this.distance; i++) {
+			final int behind = index - i * step;
+			if (behind >= 0 && behind < names.size()) {
+				this.prefetch(names.get(behind));
+			}
+		}
+	}
+}
@@ -17,94 +17,429 @@
 package imageRepository;
 
 import java.awt.Image;
-import java.io.BufferedReader;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import imageRepository.GroupCommitter.Durability;
 
 /**
  * A repository of images. Images are identified by their filename.
+ * <p>
+ * Repositories may be used by several threads at the same time. Adding,
+ * removing and decoding an image are atomic with respect to each other, and
+ * changes to image data are saved one at a time by the image data store.
  * 
  * @author Adrien Hopkins
  *
  * @since 2021-01-17
  */
 public final class ImageRepository {
+	/**
+	 * The maximum width of the thumbnails returned by {@link #getThumbnail}.
+	 */
+	public static final int THUMBNAIL_WIDTH = 240;
+	
+	/**
+	 * The maximum height of the thumbnails returned by {@link #getThumbnail}.
+	 */
+	public static final int THUMBNAIL_HEIGHT = 160;
+	
 	private static final String USERS_FILE_PATH = "users.txt";
-	private static final String IMAGEDATA_FILE_PATH = "imagedata.txt";
+	private static final String CONFIG_FILE_PATH = "repository.properties";
+	private static final String THUMBNAIL_DIRECTORY_PATH = "thumbnails";
+	
+	/**
+	 * The directory streamed images are written to before they are moved into
+	 * the image store.
+	 */
+	private static final String STAGING_DIRECTORY_PATH = "staging";
+	private static final String MANIFEST_PATH = "manifest.txt";
+	
+	/**
+	 * Files and directories in the repository directory that are not images.
+	 * Images cannot be given these names, or these names followed by an
+	 * extension (like the ".tmp" of temporary files), so that adding an image
+	 * cannot replace any of them.
+	 */
+	private static final Set<String> RESERVED_NAMES = new HashSet<>(
+			Arrays.asList(USERS_FILE_PATH, CONFIG_FILE_PATH,
+					THUMBNAIL_DIRECTORY_PATH, STAGING_DIRECTORY_PATH,
+					HeapImageDataStore.IMAGEDATA_FILE_PATH,
+					HeapImageDataStore.IMAGEDATA_SNAPSHOT_PATH,
+					HeapImageDataStore.IMAGEDATA_JOURNAL_PATH,
+					BTreeImageDataStore.IMAGEDATA_INDEX_PATH,
+					BTreeImageDataStore.VISIBILITY_INDEX_PATH,
+					BlobImageStore.BLOB_DIRECTORY_PATH,
+					BlobImageStore.REFS_FILE_PATH,
+					ShardedImageStore.SHARD_DIRECTORY_PATH));
+	
+	/**
+	 * The number of locks shared between image names.
+	 */
+	private static final int LOCK_STRIPES = 64;
+	
+	/**
+	 * Extensions of image formats that are already compressed, so are stored in
+	 * archives without compressing them again.
+	 */
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(
+			Arrays.asList("jpg", "jpeg", "png", "gif"));
+	
+	/**
+	 * The configuration property that chooses how image data is stored. If
+	 * "heap" (the default), all image data is kept in memory. If "btree", image
+	 * data is kept in a B+tree file and only read as needed, so repositories
+	 * with more image data than fits in memory can be opened.
+	 */
+	private static final String STORAGE_PROPERTY = "metadata.storage";
+	
+	/**
+	 * The configuration property that chooses when changes to the image and
+	 * user data are durable. Changes are written in groups by a background
+	 * thread; if "none", they are never synchronized onto the storage device.
+	 * If "batch-fsync" (the default), each group is synchronized. If
+	 * "per-op-fsync", each change is written and synchronized before the
+	 * method making it returns.
+	 */
+	private static final String DURABILITY_PROPERTY = "metadata.durability";
+	
+	/**
+	 * The configuration property that chooses how image files are stored. If
+	 * "directory" (the default), each image is a file in the repository
+	 * directory. If "sharded", images are spread between subdirectories so
+	 * that no directory gets too large; existing images are moved there by
+	 * {@link #migrateImages}. If "blobs", images are stored by content, so
+	 * identical images are only stored once.
+	 */
+	private static final String IMAGE_STORAGE_PROPERTY = "image.storage";
+	
+	/**
+	 * The configuration property that, if "true", lets files be hard linked
+	 * into and out of the repository instead of copied. This is much faster,
+	 * but changes to the original file then also change the image.
+	 */
+	private static final String LINK_FILES_PROPERTY = "transfer.links";
+	
+	/**
+	 * The configuration property that sets the maximum memory, in bytes, used
+	 * by decoded images cached by {@link #getImage(String)}.
+	 */
+	private static final String CACHE_SIZE_PROPERTY = "cache.bytes";
+	
+	private static final long DEFAULT_CACHE_SIZE = 64L << 20;
+	
+	/**
+	 * The configuration property that sets the maximum number of files copied
+	 * at the same time by {@link #addImages}.
+	 */
+	private static final String IMPORT_THREADS_PROPERTY = "import.threads";
+	
+	private static final int DEFAULT_IMPORT_THREADS = 8;
+	
+	/**
+	 * The configuration property that sets the number of images saved at the
+	 * same time by {@link #saveImages(Collection, File)}. Solid state drives
+	 * benefit from a high value, but hard drives are fastest with one or two,
+	 * since their heads would otherwise seek between files.
+	 */
+	private static final String EXPORT_THREADS_PROPERTY = "export.threads";
+	
+	private static final int DEFAULT_EXPORT_THREADS = 4;
+	
+	/**
+	 * The configuration property that sets the number of PBKDF2 iterations
+	 * used to hash passwords. Raising it makes passwords harder to guess from a
+	 * stolen user file, but makes logging in slower. Passwords hashed with
+	 * fewer iterations are rehashed the next time their user logs in.
+	 */
+	private static final String PASSWORD_ITERATIONS_PROPERTY =
+			"password.iterations";
+	
+	/**
+	 * The configuration property that sets the number of threads that check
+	 * passwords. Checking a password takes a lot of processor time on purpose,
+	 * so by default only half of the processors are used, leaving the rest for
+	 * other work even if many users log in at once.
+	 */
+	private static final String LOGIN_THREADS_PROPERTY = "login.threads";
+	
+	/**
+	 * The maximum number of passwords waiting to be checked. Logins beyond
+	 * this are rejected rather than queued behind a growing backlog.
+	 */
+	private static final int MAX_PENDING_LOGINS = 256;
+	
+	/**
+	 * Tests whether {@code name} can be used as the name of an image. Names
+	 * must be a single, non-empty path element ("." and ".." are not allowed),
+	 * must not contain control characters or ':', which would break the image
+	 * data files, and must not be the name of one of the repository's own
+	 * files.
+	 *
+	 * @param name name to test
+	 * @return true iff {@code name} is a valid image name
+	 * @since 2021-01-26
+	 */
+	public static final boolean isValidName(String name) {
+		if (name.isEmpty() || name.equals(".") || name.equals(".."))
+			return false;
+		
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if (Character.isISOControl(c) || c == ':' || c == '/' || c == '\\'
+					|| c == '\u2028' || c == '\u2029')
+				return false;
+		}
+		
+		final String lowerCaseName = name.toLowerCase(Locale.ROOT);
+		for (final String reserved : RESERVED_NAMES) {
+			if (lowerCaseName.equals(reserved)
+					|| lowerCaseName.startsWith(reserved + "."))
+				return false;
+		}
+		return true;
+	}
 	
 	/**
 	 * Loads an image repository from a directory {@code imageDir}.
+	 * <p>
+	 * The repository is configured by the optional file repository.properties
+	 * in the directory.
 	 *
 	 * @since 2021-01-17
 	 */
 	public static final ImageRepository fromDirectory(File imageDir) {
-		final Map<String, ImageEntry> data = loadImageData(
-				new File(imageDir, IMAGEDATA_FILE_PATH));
-		final List<User> users = loadUsers(new File(imageDir, USERS_FILE_PATH));
+		final Properties config = loadConfig(
+				new File(imageDir, CONFIG_FILE_PATH));
+		
+		final Durability durability;
+		final String durabilityName = config.getProperty(DURABILITY_PROPERTY,
+				"batch-fsync");
+		switch (durabilityName) {
+		case "none":
+			durability = Durability.NONE;
+			break;
+		case "batch-fsync":
+			durability = Durability.BATCH_FSYNC;
+			break;
+		case "per-op-fsync":
+			durability = Durability.PER_OP_FSYNC;
+			break;
+		default:
+			throw new IllegalStateException("Unknown " + DURABILITY_PROPERTY
+					+ " \"" + durabilityName + "\".");
+		}
+		
+		final ImageDataStore data;
+		final String storage = config.getProperty(STORAGE_PROPERTY, "heap");
+		switch (storage) {
+		case "heap":
+			data = HeapImageDataStore.open(imageDir, durability);
+			break;
+		case "btree":
+			data = BTreeImageDataStore.open(imageDir, durability);
+			break;
+		default:
+			throw new IllegalStateException(
+					"Unknown " + STORAGE_PROPERTY + " \"" + storage + "\".");
+		}
+		
+		final FileTransfer transfer = new FileTransfer(Boolean
+				.parseBoolean(config.getProperty(LINK_FILES_PROPERTY, "false")));
+		final ImageStore images;
+		final String imageStorage = config.getProperty(IMAGE_STORAGE_PROPERTY,
+				"directory");
+		switch (imageStorage) {
+		case "directory":
+			images = new DirectoryImageStore(imageDir, transfer, durability);
+			break;
+		case "sharded":
+			images = new ShardedImageStore(imageDir, transfer, durability);
+			break;
+		case "blobs":
+			images = BlobImageStore.open(imageDir, durability);
+			break;
+		default:
+			throw new IllegalStateException("Unknown " + IMAGE_STORAGE_PROPERTY
+					+ " \"" + imageStorage + "\".");
+		}
+		
+		final File usersFile = new File(imageDir, USERS_FILE_PATH);
+		final List<User> userList = loadUsers(usersFile);
+		
+		// later records replace earlier ones for the same user
+		final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+		for (final User user : userList) {
+			users.put(user.getUsername(), user);
+		}
+		
+		final long cacheSize = Long.parseLong(config.getProperty(
+				CACHE_SIZE_PROPERTY, Long.toString(DEFAULT_CACHE_SIZE)));
+		final int importThreads = Integer.parseInt(config.getProperty(
+				IMPORT_THREADS_PROPERTY, Integer.toString(DEFAULT_IMPORT_THREADS)));
+		final int exportThreads = Integer.parseInt(config.getProperty(
+				EXPORT_THREADS_PROPERTY, Integer.toString(DEFAULT_EXPORT_THREADS)));
+		final int passwordIterations = Integer.parseInt(config.getProperty(
+				PASSWORD_ITERATIONS_PROPERTY,
+				Integer.toString(User.DEFAULT_ITERATIONS)));
+		final int loginThreads = Integer.parseInt(config.getProperty(
+				LOGIN_THREADS_PROPERTY, Integer.toString(Math.max(1,
+						Runtime.getRuntime().availableProcessors() / 2))));
 		
-		// read imagedata.txt to get data on images
-		return new ImageRepository(imageDir, data, users);
+		return new ImageRepository(imageDir, data, images, transfer, users,
+				new Journal(usersFile, userList.size(), durability),
+				new ImageCache(cacheSize),
+				importThreads, exportThreads, passwordIterations, loginThreads);
 	}
 	
 	/**
-	 * Loads image data from the file {@code file}.
+	 * Checks that {@code name} can be used as the name of an image.
 	 *
-	 * @since 2021-01-17
+	 * @throws IllegalArgumentException if it cannot
+	 * @see #isValidName
+	 * @since 2021-01-26
 	 */
-	private static final Map<String, ImageEntry> loadImageData(File file) {
-		final Map<String, ImageEntry> data = new HashMap<>();
-		
-		try (final BufferedReader reader = new BufferedReader(
-				new FileReader(file))) {
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				final String[] parts = line.split(":");
-				if (parts.length != 3)
-					throw new IllegalStateException("Invalid imagedata.txt file.");
-				
-				// split get data
-				final String name = parts[0];
-				final String username = parts[1];
-				final boolean isPublic = "public".equals(parts[2]);
-				
-				// convert data to entry
-				final ImageEntry entry;
-				if (username == "") {
-					entry = ImageEntry.loadImage(name);
-				} else {
-					entry = ImageEntry.loadImage(name, username, isPublic);
+	private static final void checkName(String name) {
+		if (!isValidName(name))
+			throw new IllegalArgumentException(
+					"Invalid image name \"" + name + "\".");
+	}
+	
+	/**
+	 * @return true iff the image {@code name} is in a format that is already
+	 *         compressed
+	 * @since 2021-01-26
+	 */
+	private static final boolean isCompressed(String name) {
+		final int dot = name.lastIndexOf('.');
+		return dot >= 0 && COMPRESSED_EXTENSIONS
+				.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+	
+	/**
+	 * @return stream that writes to {@code out}, throwing
+	 *         {@link UncheckedIOException} instead of {@link IOException}
+	 * @since 2021-01-26
+	 */
+	private static final OutputStream uncheckedOutputStream(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void close() {
+				try {
+					this.out.close();
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
 				}
-				
-				// insert entry into database
-				data.put(name, entry);
 			}
-		} catch (final IOException e) {
-			e.printStackTrace();
+			
+			@Override
+			public void flush() {
+				try {
+					this.out.flush();
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+				try {
+					this.out.write(b, off, len);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			
+			@Override
+			public void write(int b) {
+				try {
+					this.out.write(b);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Loads the repository configuration from a file.
+	 *
+	 * @param file file to load configuration from
+	 * @return configuration, empty if the file does not exist
+	 * @since 2021-01-21
+	 */
+	private static final Properties loadConfig(File file) {
+		final Properties config = new Properties();
+		
+		if (file.exists()) {
+			try (FileReader reader = new FileReader(file)) {
+				config.load(reader);
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
 		}
 		
-		return data;
+		return config;
 	}
 	
 	/**
-	 * Loads user data from a file
+	 * Loads user data from a file. Large files are parsed in parallel.
 	 *
 	 * @param file file to load data from
 	 * @return list of users
+	 * @throws MalformedFileException if any lines in the file are malformed
 	 * @since 2021-01-17
 	 */
 	private static final List<User> loadUsers(File file) {
@@ -112,69 +447,484 @@ public final class ImageRepository {
 		if (!file.exists())
 			return new ArrayList<>();
 		
-		// create user list
-		final List<User> users = new ArrayList<>();
-		
-		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				users.add(User.fromString(line));
-			}
+		try {
+			return ParallelLineReader.read(file, User::fromString);
 		} catch (final IOException e) {
 			e.printStackTrace();
+			return new ArrayList<>();
 		}
-		
-		return users;
 	}
 	
 	private final File directory;
 	
-	private final Map<String, ImageEntry> data;
-	private final List<User> users;
+	private final ImageDataStore data;
+	
+	/**
+	 * The files of the images.
+	 */
+	private final ImageStore images;
+	
+	/**
+	 * Transfers files into and out of the repository.
+	 */
+	private final FileTransfer transfer;
 	
 	/**
-	 * @param directory directory where images and data are stored
-	 * @param data      image data
+	 * All users, by username.
+	 */
+	private final ConcurrentMap<String, User> users;
+	
+	/**
+	 * The user file, which new users are appended to.
+	 */
+	private final Journal userJournal;
+	
+	/**
+	 * Images recently decoded by {@link #getImage(String)}.
+	 */
+	private final ImageCache imageCache;
+	
+	private final ThumbnailStore thumbnails;
+	
+	/**
+	 * Gives out names for new images.
+	 */
+	private final NameAllocator names;
+	
+	/**
+	 * Locks held while an image is added, removed or decoded, so that these
+	 * happen atomically for each name while different names are handled in
+	 * parallel.
+	 */
+	private final StripedLock imageLocks = new StripedLock(LOCK_STRIPES);
+	
+	/**
+	 * The maximum number of files copied at the same time by
+	 * {@link #addImages}.
+	 */
+	private final int importThreads;
+	
+	/**
+	 * The number of images saved at the same time by
+	 * {@link #saveImages(Collection, File)}.
+	 */
+	private final int exportThreads;
+	
+	/**
+	 * The number of PBKDF2 iterations used to hash new passwords.
+	 */
+	private final int passwordIterations;
+	
+	/**
+	 * Checks passwords, on a bounded number of threads with a bounded queue.
+	 */
+	private final ExecutorService passwordVerifier;
+	
+	/**
+	 * A user with a random password, hashed like new passwords. Unknown
+	 * usernames are checked against it, so that they take as long to reject as
+	 * wrong passwords and cannot be told apart by timing.
+	 */
+	private final User unknownUser;
+	
+	/**
+	 * @param directory          directory where images and data are stored
+	 * @param data               image data
+	 * @param images             image files
+	 * @param transfer           transfers files into and out of the repository
+	 * @param users              users by username
+	 * @param userJournal        journal in the user file
+	 * @param imageCache         cache of decoded images
+	 * @param importThreads      maximum number of files copied at the same time
+	 *                           by {@link #addImages}
+	 * @param exportThreads      number of images saved at the same time by
+	 *                           {@link #saveImages(Collection, File)}
+	 * @param passwordIterations number of PBKDF2 iterations used to hash new
+	 *                           passwords
+	 * @param loginThreads       number of threads that check passwords
 	 * @since 2021-01-17
 	 */
-	private ImageRepository(File directory, Map<String, ImageEntry> data,
-			List<User> users) {
+	private ImageRepository(File directory, ImageDataStore data,
+			ImageStore images, FileTransfer transfer,
+			ConcurrentMap<String, User> users, Journal userJournal,
+			ImageCache imageCache, int importThreads, int exportThreads,
+			int passwordIterations, int loginThreads) {
 		this.directory = directory;
 		this.data = data;
+		this.images = images;
+		this.transfer = transfer;
 		this.users = users;
+		this.userJournal = userJournal;
+		this.imageCache = imageCache;
+		this.importThreads = importThreads;
+		this.exportThreads = exportThreads;
+		this.passwordIterations = passwordIterations;
+		this.passwordVerifier = new ThreadPoolExecutor(loginThreads,
+				loginThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(MAX_PENDING_LOGINS), task -> {
+					final Thread thread = new Thread(task, "Password verifier");
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.unknownUser = User.createUser("", UUID.randomUUID().toString(),
+				passwordIterations);
+		this.thumbnails = new ThumbnailStore(
+				new File(directory, THUMBNAIL_DIRECTORY_PATH), THUMBNAIL_WIDTH,
+				THUMBNAIL_HEIGHT);
+		this.names = new NameAllocator(data);
 	}
 	
 	/**
-	 * Adds an image to the directory
+	 * Takes a name for a new image, which no other image has or will be given
+	 * by this method, even if it is called by several threads at the same time.
+	 * If {@code filename} is not taken, it is used; otherwise a number is added
+	 * to it, like "image(2).png".
+	 *
+	 * @param filename name to use if possible, usually the name of the file
+	 *                 being added
+	 * @return name to add the image under
+	 * @since 2021-01-26
+	 */
+	public final String allocateName(String filename) {
+		return this.names.allocate(filename);
+	}
+	
+	/**
+	 * Adds an image to the directory, and creates its thumbnail. Nothing is
+	 * added if the file cannot be copied, for example because there is already
+	 * an image with the same name.
 	 *
 	 * @param originalFilepath place where image was originally stored
 	 * @param newFilepath      place where the image will be stored, relative to
 	 *                         directory, must be in repository directory.
 	 * @param username         username of user who added the image
 	 * @param isPublic         true iff the image is public
+	 * @throws IllegalArgumentException if {@code newFilepath} is not a
+	 *                                  {@linkplain #isValidName valid name},
+	 *                                  or the image's data is too large for
+	 *                                  the data store
 	 * @since 2021-01-17
 	 */
 	public final void addImage(File originalFilepath, String newFilepath,
 			String username, boolean isPublic) {
-		this.data.put(newFilepath,
-				ImageEntry.loadImage(newFilepath, username, isPublic));
+		checkName(newFilepath);
+		final ImageEntry entry = ImageEntry.loadImage(newFilepath, username,
+				isPublic);
+		this.data.checkEntry(entry);
+		this.names.reserve(newFilepath);
+		
+		final Lock lock = this.imageLocks.get(newFilepath);
+		lock.lock();
 		try {
-			Files.copy(Path.of(originalFilepath.getAbsolutePath()),
-					this.getPath(newFilepath));
+			if (this.data.containsKey(newFilepath))
+				throw new FileAlreadyExistsException(newFilepath);
+			this.images.add(newFilepath,
+					Path.of(originalFilepath.getAbsolutePath()));
+			this.data.put(newFilepath, entry);
+			this.imageCache.invalidate(newFilepath);
+			this.createThumbnail(newFilepath);
 		} catch (final IOException e) {
 			e.printStackTrace();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Adds an image read from a stream, such as an uploaded file, and creates
+	 * its thumbnail. The stream is written once, to a file in the repository
+	 * directory, which is then moved into the image store, so the image's name
+	 * is only locked while the file is moved.
+	 *
+	 * @param in       contents of the image; it is read to the end but not
+	 *                 closed
+	 * @param name     name to store the image under
+	 * @param username username of user who added the image
+	 * @param isPublic true iff the image is public
+	 * @throws IllegalArgumentException   if {@code name} is not a
+	 *                                    {@linkplain #isValidName valid name},
+	 *                                    or the image's data is too large for
+	 *                                    the data store
+	 * @throws FileAlreadyExistsException if there is already an image named
+	 *                                    {@code name}
+	 * @throws IOException                if the image cannot be stored
+	 * @since 2021-01-26
+	 */
+	public final void addImage(InputStream in, String name, String username,
+			boolean isPublic) throws IOException {
+		checkName(name);
+		final ImageEntry entry = ImageEntry.loadImage(name, username, isPublic);
+		this.data.checkEntry(entry);
+		
+		final Path stagingDirectory = Files.createDirectories(
+				this.directory.toPath().resolve(STAGING_DIRECTORY_PATH));
+		final Path stagedFile = Files.createTempFile(stagingDirectory, "image",
+				".tmp");
+		try {
+			Files.copy(in, stagedFile, StandardCopyOption.REPLACE_EXISTING);
+			this.names.reserve(name);
+			
+			final Lock lock = this.imageLocks.get(name);
+			lock.lock();
+			try {
+				if (this.data.containsKey(name))
+					throw new FileAlreadyExistsException(name);
+				this.images.move(name, stagedFile);
+				this.data.put(name, entry);
+				this.imageCache.invalidate(name);
+				this.createThumbnail(name);
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			Files.deleteIfExists(stagedFile);
+		}
+	}
+	
+	/**
+	 * Adds many images to the repository at once. Files are copied and their
+	 * thumbnails created on several threads at the same time, which is much
+	 * faster than calling {@link #addImage} for each image. The data of each
+	 * image is stored while its file is locked, as soon as it is copied, and
+	 * the data store saves the changes in groups.
+	 * <p>
+	 * An image fails to be added if its name is not
+	 * {@linkplain #isValidName valid}, if its data is too large for the data
+	 * store, if there is already an image with its name, or if its file cannot
+	 * be copied; this does not stop the other images from being added.
+	 * Interrupting the calling thread cancels the images that have not started
+	 * being copied.
+	 *
+	 * @param images   files to add, by the name they will be stored under
+	 * @param username username of user who added the images
+	 * @param isPublic true iff the images are public
+	 * @param listener listener notified as each image is copied, may be null
+	 * @return which images were added, and why the others were not
+	 * @since 2021-01-26
+	 */
+	public final BatchResult addImages(Map<String, File> images,
+			String username, boolean isPublic, ProgressListener listener) {
+		for (final String name : images.keySet()) {
+			if (isValidName(name)) {
+				this.names.reserve(name);
+			}
 		}
 		
-		this.saveImageData();
+		return ImageBatch.run(images.keySet(),
+				this.importThreads, listener, name -> {
+					checkName(name);
+					final ImageEntry entry = ImageEntry.loadImage(name,
+							username, isPublic);
+					this.data.checkEntry(entry);
+					final Lock lock = this.imageLocks.get(name);
+					lock.lock();
+					try {
+						if (this.data.containsKey(name))
+							throw new FileAlreadyExistsException(name);
+						this.images.add(name, images.get(name).toPath());
+						this.data.put(name, entry);
+						this.imageCache.invalidate(name);
+						this.createThumbnail(name);
+					} finally {
+						lock.unlock();
+					}
+				});
 	}
 	
 	/**
-	 * Adds a new user to the system.
+	 * Adds a new user to the system, and appends them to the user file. If two
+	 * users with the same username are added at the same time, only one of them
+	 * is added.
 	 *
+	 * @param user user to add
+	 * @return true iff the user was added, false if there is already a user
+	 *         with the same username
 	 * @since 2021-01-17
 	 */
-	public final void addUser(User user) {
-		this.users.add(user);
+	public final boolean addUser(User user) {
+		if (this.users.putIfAbsent(user.getUsername(), user) != null)
+			return false;
+		
+		this.userJournal.append(user.toString());
+		return true;
+	}
+	
+	/**
+	 * Checks a user's password in the background, on one of a bounded number
+	 * of threads, since checking a password is slow on purpose. If the password
+	 * is correct but its hash is weaker than this repository's
+	 * "password.iterations" requires, it is rehashed and the user is saved
+	 * again.
+	 *
+	 * @param username username of user
+	 * @param password password to check
+	 * @return future that completes with the user, or with null if there is no
+	 *         such user or the password is incorrect. It completes
+	 *         exceptionally with a {@link RejectedExecutionException} if too
+	 *         many passwords are already waiting to be checked.
+	 * @since 2021-01-26
+	 */
+	public final CompletableFuture<User> authenticate(String username,
+			String password) {
+		return this.verifyPasswords(() -> {
+			final User user = this.users.get(username);
+			if (user == null) {
+				this.unknownUser.authenticatePassword(password);
+				return null;
+			}
+			if (!user.authenticatePassword(password))
+				return null;
+			if (!user.needsRehash(this.passwordIterations))
+				return user;
+			
+			final User rehashed = User.createUser(username, password,
+					this.passwordIterations);
+			if (!this.users.replace(username, user, rehashed))
+				return user; // someone else rehashed or replaced the user first
+			
+			// later records replace earlier ones for the same user
+			this.userJournal.append(rehashed.toString());
+			return rehashed;
+		});
+	}
+	
+	/**
+	 * Creates and stores the thumbnail of an image.
+	 *
+	 * @param name name of image
+	 * @return thumbnail, or null if the image could not be decoded
+	 * @since 2021-01-25
+	 */
+	private final BufferedImage createThumbnail(String name) {
+		final Lock lock = this.imageLocks.get(name);
+		lock.lock();
+		try {
+			final BufferedImage image = this.getImage(name, THUMBNAIL_WIDTH,
+					THUMBNAIL_HEIGHT);
+			return image == null ? null : this.thumbnails.create(name, image);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Exports images into a single ZIP archive. The archive holds the images
+	 * under their names, followed by a manifest (manifest.txt, in UTF-8) of the
+	 * data of every exported image, in the same format as
+	 * {@link #exportImageData}. Images in formats that are already compressed,
+	 * like JPEG and PNG, are stored without compressing them again.
+	 * <p>
+	 * Each image is {@linkplain #stageImage staged} while it is locked, then
+	 * written into the archive from the staged file after the lock is
+	 * released, so writing a slow archive does not block changes to the
+	 * image.
+	 * <p>
+	 * An image that does not exist or cannot be read is skipped, and listed at
+	 * the end of the manifest on a line starting with '#' along with the
+	 * reason. Since an image is read completely before its entry is started,
+	 * the archive never holds part of a skipped image. If the archive cannot be
+	 * written, every image fails.
+	 *
+	 * @param names    names of images to export
+	 * @param archive  file to write archive to
+	 * @param listener listener notified as each image is exported, may be null
+	 * @return which images were exported, and why the others were not
+	 * @since 2021-01-26
+	 */
+	public final BatchResult exportArchive(Collection<String> names,
+			File archive, ProgressListener listener) {
+		final List<String> succeeded = new ArrayList<>();
+		final Map<String, Exception> failures = new LinkedHashMap<>();
+		
+		// errors writing the archive are unchecked, so every IOException
+		// caught for an image is an error reading it
+		Path stagedFile = null;
+		try (ZipOutputStream zip = new ZipOutputStream(uncheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(archive))))) {
+			final Path stagingDirectory = Files.createDirectories(
+					this.directory.toPath().resolve(STAGING_DIRECTORY_PATH));
+			stagedFile = Files.createTempFile(stagingDirectory, "export",
+					".tmp");
+			
+			final StringBuilder manifest = new StringBuilder();
+			for (final String name : names) {
+				try {
+					Files.deleteIfExists(stagedFile);
+					final ImageEntry entry = this.stageImage(name, stagedFile);
+					try (InputStream image = Files.newInputStream(stagedFile)) {
+						// level 0 deflate stores the data as it is, without
+						// needing its size and CRC up front like STORED
+						zip.setLevel(isCompressed(name) ? Deflater.NO_COMPRESSION
+								: Deflater.DEFAULT_COMPRESSION);
+						zip.putNextEntry(new ZipEntry(name));
+						try {
+							image.transferTo(zip);
+						} catch (final IOException e) {
+							// the entry cannot be taken back out of the archive
+							throw new UncheckedIOException(e);
+						} finally {
+							zip.closeEntry();
+						}
+					}
+					manifest.append(entry).append('\n');
+					succeeded.add(name);
+				} catch (final IOException e) {
+					failures.put(name, e);
+				}
+				
+				if (listener != null) {
+					listener.progress(succeeded.size() + failures.size(),
+							names.size());
+				}
+			}
+			
+			for (final Map.Entry<String, Exception> failure : failures
+					.entrySet()) {
+				manifest.append("# ").append(failure.getKey()).append(": ")
+						.append(failure.getValue()).append('\n');
+			}
+			zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+			zip.putNextEntry(new ZipEntry(MANIFEST_PATH));
+			zip.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		} catch (final IOException | UncheckedIOException e) {
+			e.printStackTrace();
+			succeeded.clear();
+			for (final String name : names) {
+				failures.putIfAbsent(name, e);
+			}
+		} finally {
+			if (stagedFile != null) {
+				try {
+					Files.deleteIfExists(stagedFile);
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return new BatchResult(succeeded, failures);
+	}
+	
+	/**
+	 * Exports all image data to {@code file} in the text format, one entry per
+	 * line. Repositories without an imagedata.bin file import their data from
+	 * this format when opened.
+	 *
+	 * @param file file to export to
+	 * @since 2021-01-19
+	 */
+	public final void exportImageData(File file) {
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			for (final ImageEntry entry : this.data.values()) {
+				writer.write(entry.toString() + "\n");
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	/**
@@ -186,19 +936,126 @@ public final class ImageRepository {
 	}
 	
 	/**
-	 * Gets the image with name {@code name} from the repository.
+	 * Gets the image with name {@code name} from the repository. Recently used
+	 * images are cached, so the returned image may be shared with other callers
+	 * and must not be modified.
 	 *
 	 * @since 2021-01-17
 	 */
 	public final Image getImage(String name) {
+		final BufferedImage cached = this.imageCache.get(name);
+		if (cached != null)
+			return cached;
+		
+		// only decode once if several threads want the same image, and never
+		// cache an image that was removed while it was decoded
+		final Lock lock = this.imageLocks.get(name);
+		lock.lock();
 		try {
-			return ImageIO.read(this.getPath(name).toFile());
+			// the miss was already counted above
+			final BufferedImage decoded = this.imageCache.peek(name);
+			if (decoded != null)
+				return decoded;
+			
+			final BufferedImage image = ImageIO.read(this.getPath(name).toFile());
+			if (image != null) {
+				this.imageCache.put(name, image);
+			}
+			return image;
 		} catch (final IOException e) {
 			e.printStackTrace();
 			return null;
+		} finally {
+			lock.unlock();
 		}
 	}
 	
+	/**
+	 * Gets the image with name {@code name} from the repository, scaled down to
+	 * fit within {@code maxWidth} by {@code maxHeight}. Use this instead of
+	 * {@link #getImage(String)} when the image will be shown smaller than its
+	 * full size.
+	 * <p>
+	 * The image's size is read from its header first, and only every
+	 * <i>n</i>th pixel in each direction is decoded, where <i>n</i> is as large
+	 * as possible without making the image smaller than the bounds. This needs
+	 * about 1/<i>n</i>&sup2; of the memory and time of decoding the whole image.
+	 *
+	 * @param name      name of image
+	 * @param maxWidth  maximum width of returned image
+	 * @param maxHeight maximum height of returned image
+	 * @return scaled image, or null if the image could not be decoded
+	 * @throws IllegalArgumentException if {@code maxWidth} or
+	 *                                  {@code maxHeight} is not positive
+	 * @since 2021-01-26
+	 */
+	public final BufferedImage getImage(String name, int maxWidth,
+			int maxHeight) {
+		if (maxWidth <= 0 || maxHeight <= 0)
+			throw new IllegalArgumentException("Image bounds must be positive.");
+		
+		// scale a cached full-size image instead of decoding it again; this
+		// does not count as a hit or miss, since a miss does not fill the cache
+		final BufferedImage cached = this.imageCache.peek(name);
+		if (cached != null)
+			return ThumbnailStore.scaleToFit(cached, maxWidth, maxHeight);
+		
+		try (ImageInputStream input = ImageIO
+				.createImageInputStream(this.getPath(name).toFile())) {
+			if (input == null)
+				return null;
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				return null;
+			
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				final int subsampling = Math.max(1,
+						Math.min(reader.getWidth(0) / maxWidth,
+								reader.getHeight(0) / maxHeight));
+				
+				final ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				return ThumbnailStore.scaleToFit(reader.read(0, param), maxWidth,
+						maxHeight);
+			} finally {
+				reader.dispose();
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * @return cache of images decoded by {@link #getImage(String)}, which can be
+	 *         used to see how well the cache is working
+	 * @since 2021-01-24
+	 */
+	public final ImageCache getImageCache() {
+		return this.imageCache;
+	}
+	
+	/**
+	 * @return number of images saved at the same time by
+	 *         {@link #saveImages(Collection, File)}, as set in the
+	 *         configuration
+	 * @since 2021-01-26
+	 */
+	public final int getExportThreads() {
+		return this.exportThreads;
+	}
+	
+	/**
+	 * @return object that transfers files into and out of the repository,
+	 *         which can be used to see which transfer strategies are used
+	 * @since 2021-01-26
+	 */
+	public final FileTransfer getFileTransfer() {
+		return this.transfer;
+	}
+	
 	/**
 	 * Gets data about the image {@code name}. Does not load the image file.
 	 *
@@ -208,8 +1065,36 @@ public final class ImageRepository {
 		return this.data.get(name);
 	}
 	
-	private final Path getPath(String imageFilename) {
-		return Path.of(this.directory.getAbsolutePath(), imageFilename);
+	/**
+	 * @return location of the file of image {@code imageFilename}, which must
+	 *         only be read
+	 * @since 2021-01-17
+	 */
+	final Path getPath(String imageFilename) {
+		return this.images.path(imageFilename);
+	}
+	
+	/**
+	 * Gets a thumbnail of the image with name {@code name}, no larger than
+	 * {@link #THUMBNAIL_WIDTH} by {@link #THUMBNAIL_HEIGHT}. Thumbnails are
+	 * created when images are added, so this does not read the full image.
+	 * Images added before thumbnails existed get theirs the first time this is
+	 * called.
+	 *
+	 * @param name name of image
+	 * @return thumbnail, or null if the image could not be decoded
+	 * @since 2021-01-25
+	 */
+	public final Image getThumbnail(String name) {
+		try {
+			final BufferedImage thumbnail = this.thumbnails.get(name);
+			if (thumbnail != null)
+				return thumbnail;
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		
+		return this.createThumbnail(name);
 	}
 	
 	/**
@@ -218,24 +1103,143 @@ public final class ImageRepository {
 	 * @since 2021-01-17
 	 */
 	public final User getUser(String username) {
-		for (final User user : this.users)
-			if (Objects.equals(username, user.getUsername()))
-				return user;
-		return null;
+		return username == null ? null : this.users.get(username);
 	}
 	
 	/**
+	 * Gets one page of the names of the images visible to a user, in the same
+	 * order as {@link #imageNames}. Only the names on the page are read, so a
+	 * long list can be shown one page at a time.
+	 *
+	 * @param username user to get list for; null for no user
+	 * @param pageSize maximum number of names on the page
+	 * @param cursor   cursor returned with the previous page, or null to get the
+	 *                 first page
+	 * @return page of names
+	 * @throws IllegalArgumentException if {@code pageSize} is not positive or
+	 *                                  {@code cursor} is invalid
+	 * @since 2021-01-23
+	 */
+	public final ImagePage imagePage(String username, int pageSize,
+			String cursor) {
+		if (pageSize <= 0)
+			throw new IllegalArgumentException("Page size must be positive.");
+		
+		// the cursor is the last name on the previous page
+		final String after = cursor == null ? null
+				: new String(Base64.getUrlDecoder().decode(cursor),
+						StandardCharsets.UTF_8);
+		
+		final List<String> names = new ArrayList<>(pageSize);
+		final Iterator<String> visibleNames = this.data.visibleNames(username,
+				after);
+		while (names.size() < pageSize && visibleNames.hasNext()) {
+			names.add(visibleNames.next());
+		}
+		
+		final Optional<String> nextCursor = visibleNames.hasNext()
+				? Optional.of(Base64.getUrlEncoder().withoutPadding()
+						.encodeToString(names.get(names.size() - 1)
+								.getBytes(StandardCharsets.UTF_8)))
+				: Optional.empty();
+		return new ImagePage(names, nextCursor);
+	}
+	
+	/**
+	 * Gets the names of the images visible to a user: all public images, and
+	 * the user's own private images.
+	 * <p>
+	 * The returned set is an unmodifiable view backed by the repository's name
+	 * indexes, so getting it does not copy anything. Iterating over it visits
+	 * the names in order, and only looks at the images it returns.
+	 *
 	 * @param username user to get list for; null for no user
-	 * @return set of names of all images in repository
+	 * @return set of names of all images in repository visible to the user
 	 * @since 2021-01-17
 	 */
 	public final Set<String> imageNames(String username) {
-		final Set<String> imageNamesFiltered = new HashSet<>(this.data.keySet());
-		imageNamesFiltered.removeIf(name -> {
-			final ImageEntry data = this.getImageData(name);
-			return !data.isPublic() && !data.getUser().get().equals(username);
+		return new AbstractSet<String>() {
+			@Override
+			public boolean contains(Object o) {
+				final ImageEntry entry = ImageRepository.this.data.get(o);
+				return entry != null && (entry.isPublic()
+						|| entry.getUser().get().equals(username));
+			}
+			
+			@Override
+			public Iterator<String> iterator() {
+				return ImageRepository.this.data.visibleNames(username, null);
+			}
+			
+			@Override
+			public int size() {
+				int size = 0;
+				for (final Iterator<String> names = this.iterator(); names
+						.hasNext(); names.next()) {
+					size++;
+				}
+				return size;
+			}
+		};
+	}
+	
+	/**
+	 * Moves every image stored in a different layout into the layout chosen by
+	 * the configuration. Currently, this moves the images of a repository that
+	 * was switched to the "sharded" layout from the repository directory into
+	 * their subdirectories, and moves thumbnails saved before thumbnails were
+	 * sharded into theirs.
+	 * <p>
+	 * Each image is moved atomically while holding its lock, so other threads
+	 * using this repository object can keep using it while it is migrated. No
+	 * other process may use the repository at the same time, since it would not
+	 * see the locks. If the migration is interrupted, running it again
+	 * continues where it stopped.
+	 *
+	 * @param listener listener notified as each image is checked, may be null
+	 * @return which images were moved or already in the right layout, and why
+	 *         the others could not be moved
+	 * @since 2021-01-26
+	 */
+	public final BatchResult migrateImages(ProgressListener listener) {
+		final List<String> names = new ArrayList<>();
+		for (final String name : this.data.keySet()) {
+			names.add(name);
+		}
+		return ImageBatch.run(names, this.importThreads, listener, name -> {
+			final Lock lock = this.imageLocks.get(name);
+			lock.lock();
+			try {
+				// skip images removed since the names were listed
+				if (this.data.containsKey(name)) {
+					this.images.migrate(name);
+					this.thumbnails.migrate(name);
+				}
+			} finally {
+				lock.unlock();
+			}
+		});
+	}
+	
+	/**
+	 * Registers a new user in the background, hashing their password on the
+	 * same threads that check passwords.
+	 *
+	 * @param username username of new user
+	 * @param password password of new user
+	 * @return future that completes with the new user, or with null if there is
+	 *         already a user with the same username. It completes
+	 *         exceptionally with a {@link RejectedExecutionException} if too
+	 *         many passwords are already waiting to be hashed.
+	 * @since 2021-01-26
+	 */
+	public final CompletableFuture<User> registerUser(String username,
+			String password) {
+		return this.verifyPasswords(() -> {
+			final User user = User.createUser(username, password,
+					this.passwordIterations);
+			return this.addUser(user) ? user : null;
 		});
-		return Collections.unmodifiableSet(imageNamesFiltered);
 	}
 	
 	/**
@@ -249,22 +1253,94 @@ public final class ImageRepository {
 	 * @since 2021-01-17
 	 */
 	public final boolean removeImage(String name, String username) {
-		final ImageEntry entry = this.data.get(name);
+		final Lock lock = this.imageLocks.get(name);
+		lock.lock();
+		try {
+			final ImageEntry entry = this.data.get(name);
+			
+			if (entry != null && entry.getUser().isPresent()
+					&& entry.getUser().get().equals(username)) {
+				this.data.remove(name);
+				this.imageCache.invalidate(name);
+				try {
+					this.images.remove(name);
+					this.thumbnails.delete(name);
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+				
+				return true;
+			} else
+				return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes several images at once. Every image is checked before any is
+	 * removed, then the data of the images is removed together and their files
+	 * are deleted on several threads at the same time, which is much faster
+	 * than calling {@link #removeImage} for each image.
+	 * <p>
+	 * An image fails to be removed if there is no image with its name
+	 * ({@link NoSuchFileException}) or it is not owned by {@code username}
+	 * ({@link AccessDeniedException}); this does not stop the other images from
+	 * being removed.
+	 *
+	 * @param names    names of images to remove
+	 * @param username username of remover, must match owner's username, null
+	 *                 for not logged in
+	 * @return which images were removed, and why the others were not
+	 * @since 2021-01-26
+	 */
+	public final BatchResult removeImages(Collection<String> names,
+			String username) {
+		final List<String> removed = new ArrayList<>();
+		final Map<String, Exception> failures = new LinkedHashMap<>();
 		
-		if (entry.getUser().isPresent()
-				&& entry.getUser().get().equals(username)) {
-			this.data.remove(name);
-			try {
-				Files.delete(this.getPath(name));
-			} catch (final IOException e) {
-				e.printStackTrace();
+		// hold the locks of every image until its file is gone, so no image with
+		// the same name can be added in the meantime
+		final List<Lock> locks = this.imageLocks.getAll(names);
+		for (final Lock lock : locks) {
+			lock.lock();
+		}
+		try {
+			for (final String name : new LinkedHashSet<>(names)) {
+				final ImageEntry entry = this.data.get(name);
+				if (entry == null) {
+					failures.put(name, new NoSuchFileException(name));
+				} else if (entry.getUser().isPresent()
+						&& entry.getUser().get().equals(username)) {
+					removed.add(name);
+				} else {
+					failures.put(name, new AccessDeniedException(name, null,
+							"Image is not owned by " + username));
+				}
 			}
 			
-			this.saveImageData();
+			// commit the removal of every image at once
+			this.data.removeAll(removed);
+			for (final String name : removed) {
+				this.imageCache.invalidate(name);
+			}
 			
-			return true;
-		} else
-			return false;
+			// a file that cannot be deleted is only wasted space now
+			final BatchResult deletion = ImageBatch.run(removed,
+					this.importThreads, null, name -> {
+						this.images.remove(name);
+						this.thumbnails.delete(name);
+					});
+			for (final Exception e : deletion.getFailures().values()) {
+				e.printStackTrace();
+			}
+		} finally {
+			for (final Lock lock : locks) {
+				lock.unlock();
+			}
+		}
+		
+		return new BatchResult(removed, failures);
 	}
 	
 	/**
@@ -283,44 +1359,149 @@ public final class ImageRepository {
 		
 		// copy file to filepath
 		try {
-			Files.copy(this.getPath(imageName), Path.of(saveTo.getAbsolutePath()));
+			this.transfer.transferOut(this.getPath(imageName),
+					Path.of(saveTo.getAbsolutePath()));
 		} catch (final IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Saves all image data.
+	 * Saves many images to a directory outside the repository, using the number
+	 * of threads set in the configuration.
+	 *
+	 * @param names     names of images to save
+	 * @param directory directory to save to, under the images' names
+	 * @return which images were saved, and why the others were not
+	 * @since 2021-01-26
+	 * @see #saveImages(Collection, File, int, ProgressListener)
+	 */
+	public final BatchResult saveImages(Collection<String> names,
+			File directory) {
+		return this.saveImages(names, directory, this.exportThreads, null);
+	}
+	
+	/**
+	 * Saves many images to a directory outside the repository, several at the
+	 * same time. An image fails to be saved if it does not exist, or if there
+	 * is already a file with its name in the directory; this does not stop the
+	 * other images from being saved. Interrupting the calling thread cancels
+	 * the images that have not started being saved.
+	 *
+	 * @param names       names of images to save
+	 * @param directory   directory to save to, under the images' names
+	 * @param parallelism maximum number of images saved at the same time
+	 * @param listener    listener notified as each image is saved, may be null
+	 * @return which images were saved, and why the others were not
+	 * @since 2021-01-26
+	 */
+	public final BatchResult saveImages(Collection<String> names,
+			File directory, int parallelism, ProgressListener listener) {
+		return ImageBatch.run(names, parallelism, listener, name -> {
+			if (!this.data.containsKey(name))
+				throw new NoSuchFileException(name);
+			this.transfer.transferOut(this.getPath(name),
+					Path.of(directory.getAbsolutePath(), name));
+		});
+	}
+	
+	/**
+	 * Saves all image data. Changes to image data are saved as they are made,
+	 * but saving everything makes the repository faster to open.
 	 * 
 	 * @since 2021-01-17
 	 */
 	public final void saveImageData() {
-		final File file = new File(this.directory, IMAGEDATA_FILE_PATH);
-		
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-			for (final String name : this.data.keySet()) {
-				final ImageEntry entry = this.data.get(name);
-				writer.write(entry.toString() + "\n");
-			}
-		} catch (final IOException e) {
-			e.printStackTrace();
-		}
+		this.data.save();
 	}
 	
 	/**
-	 * Saves the user data into the specified file.
+	 * Saves the user data into the user file, replacing its contents. Users are
+	 * saved as they are added, so this is only needed to remove outdated
+	 * records from the file.
 	 *
 	 * @since 2021-01-17
 	 */
 	public final void saveUsers() {
-		final File file = new File(this.directory, USERS_FILE_PATH);
-		
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-			for (final User user : this.users) {
-				writer.write(user.toString() + "\n");
-			}
+		try {
+			this.userJournal.rewrite(() -> {
+				final List<String> records = new ArrayList<>(this.users.size());
+				for (final User user : this.users.values()) {
+					records.add(user.toString());
+				}
+				return records;
+			});
 		} catch (final IOException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Stages an image to be read after its lock is released. The image is hard
+	 * linked to {@code stagedFile} if possible, which is safe because image
+	 * files are never changed in place and the link never leaves the
+	 * repository, or copied otherwise. Either way, the staged file keeps the
+	 * image's contents if the image is removed or replaced.
+	 *
+	 * @param name       name of image
+	 * @param stagedFile file to stage the image in, which must not exist
+	 * @return data of the image
+	 * @throws NoSuchFileException if there is no image named {@code name}
+	 * @throws IOException         if the image cannot be staged
+	 * @since 2021-01-26
+	 */
+	private final ImageEntry stageImage(String name, Path stagedFile)
+			throws IOException {
+		final Lock lock = this.imageLocks.get(name);
+		lock.lock();
+		try {
+			final ImageEntry entry = this.data.get(name);
+			if (entry == null)
+				throw new NoSuchFileException(name);
+			
+			final Path image = this.getPath(name);
+			if (!Files.isRegularFile(image))
+				throw new NoSuchFileException(image.toString());
+			try {
+				Files.createLink(stagedFile, image);
+			} catch (final UnsupportedOperationException
+					| FileSystemException e) {
+				Files.copy(image, stagedFile);
+			}
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Runs a task on the password verifier threads.
+	 *
+	 * @return future that completes with the result of {@code task}
+	 * @since 2021-01-26
+	 */
+	private final CompletableFuture<User> verifyPasswords(
+			Supplier<User> task) {
+		try {
+			return CompletableFuture.supplyAsync(task, this.passwordVerifier);
+		} catch (final RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Gets a future that completes once every change made so far to the image
+	 * and user data is durable, as chosen by the repository's
+	 * "metadata.durability" property. Changes are saved in the background, so
+	 * callers that must know a change has reached the disk, like a server
+	 * acknowledging an upload, should wait on this after making it.
+	 *
+	 * @return future that completes once every change made so far is durable,
+	 *         or completes exceptionally if any could not be saved
+	 * @since 2021-01-26
+	 */
+	public final CompletableFuture<Void> whenDurable() {
+		return CompletableFuture.allOf(this.data.whenDurable(),
+				this.images.whenDurable(), this.userJournal.whenDurable());
+	}
 }
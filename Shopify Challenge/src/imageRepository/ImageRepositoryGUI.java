@@ -20,13 +20,21 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.GridLayout;
+import java.awt.Image;
 import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -36,7 +44,10 @@ import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import javax.swing.border.BevelBorder;
 import javax.swing.border.LineBorder;
@@ -49,31 +60,23 @@ import imageRepository.libraries.DelegateListModel;
  * @since 2021-01-17
  */
 public final class ImageRepositoryGUI {
-	private static final Pattern UNIQUE_FILE = Pattern
-			.compile("(.+)\\((\\d+)\\)\\.(\\w+)");
+	/**
+	 * The number of image names loaded into the list at a time.
+	 */
+	private static final int PAGE_SIZE = 500;
 	
 	/**
-	 * @param args commandline arguments
-	 * @since 2021-01-17
+	 * The number of images on each side of the selected one whose previews are
+	 * loaded before they are selected.
 	 */
-	public static void main(String[] args) {
-		new ImageRepositoryGUI().init();
-	}
+	private static final int PREFETCH_DISTANCE = 3;
 	
 	/**
-	 * @return a "unique" filename derived from 'filename'
+	 * @param args commandline arguments
 	 * @since 2021-01-17
 	 */
-	private static final String unique(String filename) {
-		final Matcher matcher = UNIQUE_FILE.matcher(filename);
-		if (matcher.matches()) {
-			final int currentNum = Integer.parseInt(matcher.group(2));
-			return matcher.group(1) + "(" + Integer.toString(currentNum + 1) + ")."
-					+ matcher.group(3);
-		} else {
-			final String[] parts = filename.split("\\.");
-			return parts[0] + "(1)." + parts[1];
-		}
+	public static void main(String[] args) {
+		new ImageRepositoryGUI().init();
 	}
 	
 	private final JFrame frame;
@@ -84,6 +87,19 @@ public final class ImageRepositoryGUI {
 	
 	private final List<String> imageList;
 	
+	/**
+	 * The cursor of the next page of image names to load into the list, or null
+	 * if every page has been loaded.
+	 */
+	private String nextPageCursor = null;
+	
+	/**
+	 * Images added to the list by this GUI since the list was last loaded from
+	 * the repository. These are skipped when loading later pages, so they are
+	 * not listed twice.
+	 */
+	private final Set<String> addedImages = new HashSet<>();
+	
 	private final ImageIcon imageIcon;
 	
 	private final JLabel iconLabel;
@@ -98,6 +114,35 @@ public final class ImageRepositoryGUI {
 	
 	private ImageRepository repository;
 	
+	/**
+	 * Loads image previews in the background, so the GUI does not freeze while
+	 * an image is decoded.
+	 */
+	private final ExecutorService previewExecutor = Executors
+			.newSingleThreadExecutor(task -> {
+				final Thread thread = new Thread(task, "Image preview loader");
+				thread.setDaemon(true);
+				return thread;
+			});
+	
+	/**
+	 * The preview currently being loaded, or null if none is.
+	 */
+	private Future<?> previewTask = null;
+	
+	/**
+	 * The number of times the image view has been updated. A preview is only
+	 * shown if the view has not been updated since it started loading.
+	 */
+	private volatile long previewRequest = 0;
+	
+	/**
+	 * Loads the previews of the images next to the selected one, so that moving
+	 * through the list is not slowed down by reading images.
+	 */
+	private final ImagePrefetcher prefetcher = new ImagePrefetcher(
+			name -> this.repository.getThumbnail(name), PREFETCH_DISTANCE);
+	
 	/**
 	 * @since 2021-01-17
 	 */
@@ -116,8 +161,18 @@ public final class ImageRepositoryGUI {
 			this.imageList = model;
 			
 			this.imageJList = new JList<>(model);
-			masterPanel.add(new JScrollPane(this.imageJList), BorderLayout.CENTER);
+			final JScrollPane imageScrollPane = new JScrollPane(this.imageJList);
+			masterPanel.add(imageScrollPane, BorderLayout.CENTER);
 			this.imageJList.addListSelectionListener(e -> this.updateImageView());
+			
+			// load more images when scrolled near the bottom of the list
+			imageScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+				final JScrollBar scrollBar = imageScrollPane.getVerticalScrollBar();
+				if (this.nextPageCursor != null && scrollBar.getValue()
+						+ 2 * scrollBar.getVisibleAmount() >= scrollBar.getMaximum()) {
+					this.loadNextPage();
+				}
+			});
 		}
 		
 		{
@@ -166,7 +221,8 @@ public final class ImageRepositoryGUI {
 			this.iconLabel = new JLabel();
 			this.iconLabel.setDisabledIcon(this.imageIcon);
 			this.iconLabel.setBorder(new LineBorder(Color.BLACK));
-			this.iconLabel.setPreferredSize(new Dimension(240, 160));
+			this.iconLabel.setPreferredSize(new Dimension(
+					ImageRepository.THUMBNAIL_WIDTH, ImageRepository.THUMBNAIL_HEIGHT));
 			rightPanel.add(this.iconLabel, BorderLayout.CENTER);
 		}
 		
@@ -177,7 +233,9 @@ public final class ImageRepositoryGUI {
 	
 	/**
 	 * Add one or more files to the repository. Files are chosen by the user with
-	 * a dialog.
+	 * a dialog, and copied in the background while a progress dialog is shown.
+	 * Cancelling the progress dialog stops the files that have not started
+	 * being copied.
 	 * 
 	 * @param isPublic whether or not the images are public
 	 * 
@@ -190,19 +248,51 @@ public final class ImageRepositoryGUI {
 		this.fileChooser.showOpenDialog(this.frame);
 		
 		final File[] files = this.fileChooser.getSelectedFiles();
+		if (files.length == 0)
+			return;
 		
+		final Map<String, File> images = new LinkedHashMap<>();
 		for (final File f : files) {
-			String newPath = f.getName();
-			
-			while (Files.exists(Path.of(
-					this.repository.getDirectory().getAbsolutePath(), newPath))) {
-				newPath = unique(newPath);
-			}
-			
-			this.repository.addImage(f, newPath, this.currentUser.getUsername(),
-					isPublic);
-			this.imageList.add(newPath);
+			images.put(this.repository.allocateName(f.getName()), f);
 		}
+		
+		final ImageRepository repository = this.repository;
+		final String username = this.currentUser.getUsername();
+		final ProgressMonitor monitor = new ProgressMonitor(this.frame,
+				"Adding " + images.size() + " images...", null, 0, images.size());
+		
+		final Thread importThread = new Thread(() -> {
+			final Thread worker = Thread.currentThread();
+			final BatchResult result = repository.addImages(images, username,
+					isPublic,
+					(completed, total) -> SwingUtilities.invokeLater(() -> {
+						monitor.setProgress(completed);
+						if (monitor.isCanceled()) {
+							worker.interrupt();
+						}
+					}));
+			
+			SwingUtilities.invokeLater(() -> {
+				final boolean cancelled = monitor.isCanceled();
+				monitor.close();
+				if (repository != this.repository)
+					return;
+				
+				for (final String name : result.getSucceeded()) {
+					this.imageList.add(name);
+					this.addedImages.add(name);
+				}
+				
+				if (!result.isSuccessful() && !cancelled) {
+					JOptionPane.showMessageDialog(this.frame,
+							result.getFailures().size()
+									+ " image(s) could not be added: "
+									+ result.getFailures().keySet(),
+							"Image Addition Error", JOptionPane.ERROR_MESSAGE);
+				}
+			});
+		}, "Image importer");
+		importThread.start();
 	}
 	
 	public void init() {
@@ -225,20 +315,40 @@ public final class ImageRepositoryGUI {
 		this.repository = ImageRepository
 				.fromDirectory(this.fileChooser.getSelectedFile());
 		
-		this.imageList.clear();
-		this.imageList.addAll(this.repository.imageNames(null));
+		this.reloadImageList();
+	}
+	
+	/**
+	 * Loads the next page of image names into the list.
+	 * 
+	 * @since 2021-01-23
+	 */
+	private void loadNextPage() {
+		final ImagePage page = this.repository.imagePage(
+				this.currentUser == null ? null : this.currentUser.getUsername(),
+				PAGE_SIZE, this.nextPageCursor);
+		this.nextPageCursor = page.getNextCursor().orElse(null);
+		
+		for (final String name : page.getNames()) {
+			if (!this.addedImages.contains(name)) {
+				this.imageList.add(name);
+			}
+		}
 	}
 	
 	/**
 	 * Logs on or offers to register if there is no user with the provided
-	 * username.
+	 * username. The password is checked or hashed in the background, since
+	 * that takes a long time on purpose.
 	 *
 	 * @param username provided username
 	 * @param password provided password
-	 * @return true iff the log on or registration was successful
+	 * @return future that completes, on the event dispatch thread, with true
+	 *         iff the log on or registration was successful
 	 * @since 2021-01-17
 	 */
-	private boolean loginOrRegister(String username, String password) {
+	private CompletableFuture<Boolean> loginOrRegister(String username,
+			String password) {
 		final User user = this.repository.getUser(username);
 		
 		if (user == null) { // register
@@ -246,42 +356,51 @@ public final class ImageRepositoryGUI {
 					"There is no user with username \"" + username
 							+ "\".  Register as \"" + username + "\"?",
 					"New User Registration", JOptionPane.YES_NO_OPTION);
+			if (result != JOptionPane.YES_OPTION)
+				return CompletableFuture.completedFuture(false); // did not log in
 			
-			switch (result) {
-			case JOptionPane.YES_OPTION:
-				final User newUser = User.createUser(username, password);
-				this.repository.addUser(newUser);
-				this.currentUser = newUser;
-				
-				this.usernameLabel.setText("Logged in as " + username);
-				this.loginRegisterButton.setText("Log out");
-				
-				this.repository.saveUsers(); // user list updated, save users
-				this.addButton.setEnabled(true);
-				return true; // logged on as new user
-				
-			default:
-				return false; // did not log in
-			}
+			return this.repository.registerUser(username, password)
+					.handleAsync((newUser, exception) -> {
+						if (exception != null) {
+							this.showLoginError(exception);
+							return false;
+						} else if (newUser == null) {
+							JOptionPane.showMessageDialog(this.frame,
+									"Username \"" + username + "\" was just taken.",
+									"Error", JOptionPane.ERROR_MESSAGE);
+							return false; // someone else registered this username first
+						}
+						this.currentUser = newUser;
+						
+						this.usernameLabel.setText("Logged in as " + username);
+						this.loginRegisterButton.setText("Log out");
+						
+						this.addButton.setEnabled(true);
+						return true; // logged on as new user
+					}, SwingUtilities::invokeLater);
 		} else { // log on
-			if (user.authenticatePassword(password)) {
-				this.currentUser = user;
-				
-				this.usernameLabel.setText("Logged in as " + username);
-				this.loginRegisterButton.setText("Log out");
-				
-				this.imageList.clear();
-				this.imageList
-						.addAll(this.repository.imageNames(user.getUsername()));
-				
-				this.addButton.setEnabled(true);
-				
-				return true; // logged on as existing user with correct password
-			} else {
-				JOptionPane.showMessageDialog(this.frame, "Incorrect password.",
-						"Error", JOptionPane.ERROR_MESSAGE);
-				return false; // logged on as existing user with incorrect password
-			}
+			return this.repository.authenticate(username, password)
+					.handleAsync((authenticated, exception) -> {
+						if (exception != null) {
+							this.showLoginError(exception);
+							return false;
+						} else if (authenticated == null) {
+							JOptionPane.showMessageDialog(this.frame,
+									"Incorrect password.", "Error",
+									JOptionPane.ERROR_MESSAGE);
+							return false; // logged on as existing user with incorrect password
+						}
+						this.currentUser = authenticated;
+						
+						this.usernameLabel.setText("Logged in as " + username);
+						this.loginRegisterButton.setText("Log out");
+						
+						this.reloadImageList();
+						
+						this.addButton.setEnabled(true);
+						
+						return true; // logged on as existing user with correct password
+					}, SwingUtilities::invokeLater);
 		}
 	}
 	
@@ -296,8 +415,21 @@ public final class ImageRepositoryGUI {
 		this.usernameLabel.setText("Not logged in");
 		this.addButton.setEnabled(false);
 		
+		this.reloadImageList();
+	}
+	
+	/**
+	 * Clears the list of images, then loads the first page of images visible to
+	 * the current user.
+	 * 
+	 * @since 2021-01-23
+	 */
+	private void reloadImageList() {
 		this.imageList.clear();
-		this.imageList.addAll(this.repository.imageNames(null));
+		this.addedImages.clear();
+		this.prefetcher.clear();
+		this.nextPageCursor = null;
+		this.loadNextPage();
 	}
 	
 	/**
@@ -345,22 +477,40 @@ public final class ImageRepositoryGUI {
 		}
 		
 		// remove files
+		final List<String> names = new ArrayList<>(selectedIndices.length);
 		for (final int i : selectedIndices) {
-			if (this.repository.removeImage(this.imageList.get(i),
-					this.currentUser.getUsername())) {
-				this.imageList.remove(i);
-			}
+			names.add(this.imageList.get(i));
+		}
+		final BatchResult result = this.repository.removeImages(names,
+				this.currentUser.getUsername());
+		
+		for (final String name : result.getSucceeded()) {
+			this.prefetcher.remove(name);
 		}
+		this.imageList.removeAll(new HashSet<>(result.getSucceeded()));
 	}
 	
 	/**
-	 * Saves the selected files, prompting the user for save location
+	 * Saves the selected files, prompting the user for save location. Multiple
+	 * files are saved in the background while a progress dialog is shown.
 	 * 
 	 * @since 2021-01-17
 	 */
 	public void saveSelected() {
 		final int[] selectedIndices = this.imageJList.getSelectedIndices();
 		
+		if (selectedIndices.length > 1) {
+			final int result = JOptionPane.showConfirmDialog(this.frame,
+					"Save the " + selectedIndices.length
+							+ " selected images into one ZIP archive?",
+					"Save as Archive", JOptionPane.YES_NO_CANCEL_OPTION);
+			if (result == JOptionPane.YES_OPTION) {
+				this.saveSelectedArchive(selectedIndices);
+				return;
+			} else if (result != JOptionPane.NO_OPTION)
+				return;
+		}
+		
 		// select save location
 		this.fileChooser.setDialogTitle(
 				selectedIndices.length > 1 ? "Choose a directory to save to."
@@ -373,25 +523,168 @@ public final class ImageRepositoryGUI {
 		
 		final File saveTo = this.fileChooser.getSelectedFile();
 		
-		// save files
+		if (selectedIndices.length == 1) {
+			this.repository.saveImage(this.imageList.get(selectedIndices[0]),
+					saveTo);
+			return;
+		}
+		
+		// save files in the background
+		final List<String> names = new ArrayList<>(selectedIndices.length);
 		for (final int i : selectedIndices) {
-			this.repository.saveImage(this.imageList.get(i), saveTo);
+			names.add(this.imageList.get(i));
 		}
+		
+		final ImageRepository repository = this.repository;
+		final ProgressMonitor monitor = new ProgressMonitor(this.frame,
+				"Saving " + names.size() + " images...", null, 0, names.size());
+		
+		final Thread exportThread = new Thread(() -> {
+			final Thread worker = Thread.currentThread();
+			final BatchResult result = repository.saveImages(names, saveTo,
+					repository.getExportThreads(),
+					(completed, total) -> SwingUtilities.invokeLater(() -> {
+						monitor.setProgress(completed);
+						if (monitor.isCanceled()) {
+							worker.interrupt();
+						}
+					}));
+			
+			SwingUtilities.invokeLater(() -> {
+				final boolean cancelled = monitor.isCanceled();
+				monitor.close();
+				if (!result.isSuccessful() && !cancelled) {
+					JOptionPane.showMessageDialog(this.frame,
+							result.getFailures().size()
+									+ " image(s) could not be saved: "
+									+ result.getFailures().keySet(),
+							"Image Save Error", JOptionPane.ERROR_MESSAGE);
+				}
+			});
+		}, "Image exporter");
+		exportThread.start();
+	}
+	
+	/**
+	 * Tells the user that their password could not be checked.
+	 *
+	 * @param exception reason the password could not be checked
+	 * @since 2021-01-26
+	 */
+	private void showLoginError(Throwable exception) {
+		final Throwable cause = exception instanceof CompletionException
+				? exception.getCause()
+				: exception;
+		if (!(cause instanceof RejectedExecutionException)) {
+			cause.printStackTrace();
+		}
+		JOptionPane.showMessageDialog(this.frame,
+				"Your password could not be checked.  Please try again.", "Error",
+				JOptionPane.ERROR_MESSAGE);
+	}
+	
+	/**
+	 * Saves the selected files into a ZIP archive, prompting the user for its
+	 * location. The archive is written in the background while a progress
+	 * dialog is shown.
+	 * 
+	 * @param selectedIndices indices of selected images
+	 * @since 2021-01-26
+	 */
+	private void saveSelectedArchive(int[] selectedIndices) {
+		this.fileChooser.setDialogTitle("Choose a location to save to.");
+		this.fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+		this.fileChooser.setMultiSelectionEnabled(false);
+		if (this.fileChooser
+				.showSaveDialog(this.frame) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File archive = this.fileChooser.getSelectedFile();
+		if (!archive.getName().toLowerCase().endsWith(".zip")) {
+			archive = new File(archive.getPath() + ".zip");
+		}
+		final File saveTo = archive;
+		
+		final List<String> names = new ArrayList<>(selectedIndices.length);
+		for (final int i : selectedIndices) {
+			names.add(this.imageList.get(i));
+		}
+		
+		final ImageRepository repository = this.repository;
+		final ProgressMonitor monitor = new ProgressMonitor(this.frame,
+				"Saving " + names.size() + " images...", null, 0, names.size());
+		
+		final Thread exportThread = new Thread(() -> {
+			final BatchResult result = repository.exportArchive(names, saveTo,
+					(completed, total) -> SwingUtilities
+							.invokeLater(() -> monitor.setProgress(completed)));
+			
+			SwingUtilities.invokeLater(() -> {
+				monitor.close();
+				if (!result.isSuccessful()) {
+					JOptionPane.showMessageDialog(this.frame,
+							result.getFailures().size()
+									+ " image(s) could not be saved: "
+									+ result.getFailures().keySet(),
+							"Image Save Error", JOptionPane.ERROR_MESSAGE);
+				}
+			});
+		}, "Image exporter");
+		exportThread.start();
 	}
 	
 	/**
 	 * Updates the image view, called when the selection on the list changes.
+	 * <p>
+	 * If one image is selected, a placeholder is shown while its preview loads
+	 * in the background. Selecting something else cancels the preview if it has
+	 * not been loaded yet, so only the latest selection is ever shown.
 	 * 
 	 * @since 2021-01-17
 	 */
 	public void updateImageView() {
 		final int[] selectedIndices = this.imageJList.getSelectedIndices();
 		
+		// any preview still loading is for an old selection
+		final long request = ++this.previewRequest;
+		if (this.previewTask != null) {
+			this.previewTask.cancel(true);
+			this.previewTask = null;
+		}
+		
+		this.prefetcher.selected(this.imageList,
+				selectedIndices.length == 1 ? selectedIndices[0] : -1);
+		
 		if (selectedIndices.length == 1) {
-			this.imageIcon.setImage(this.repository
-					.getImage(this.imageList.get(selectedIndices[0])));
-			this.iconLabel.setEnabled(false);
-			this.iconLabel.setText("");
+			final String name = this.imageList.get(selectedIndices[0]);
+			final Image prefetched = this.prefetcher.get(name);
+			if (prefetched != null) {
+				this.imageIcon.setImage(prefetched);
+				this.iconLabel.setEnabled(false);
+				this.iconLabel.setText("");
+				return;
+			}
+			
+			this.iconLabel.setEnabled(true);
+			this.iconLabel.setText("Loading...");
+			
+			this.previewTask = this.previewExecutor.submit(() -> {
+				if (request != this.previewRequest)
+					return;
+				final Image preview = this.repository.getThumbnail(name);
+				
+				SwingUtilities.invokeLater(() -> {
+					if (request != this.previewRequest)
+						return;
+					if (preview == null) {
+						this.iconLabel.setText("Could not load image.");
+					} else {
+						this.imageIcon.setImage(preview);
+						this.iconLabel.setEnabled(false);
+						this.iconLabel.setText("");
+					}
+				});
+			});
 		} else if (selectedIndices.length == 0) {
 			this.iconLabel.setEnabled(true);
 			this.iconLabel.setText("");
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds, gets and removes images on one {@link ImageRepository} from several
+ * threads at once, using a small set of names so that the threads keep
+ * working on the same images. Afterwards, it checks that the image data, the
+ * image files and the image cache agree with each other, both in the open
+ * repository and after opening it again, and prints every disagreement.
+ *
+ * @since 2021-01-26
+ */
+public final class ImageRepositoryStressTest {
+	private static final int DEFAULT_THREADS = 16;
+	
+	private static final int DEFAULT_SECONDS = 10;
+	
+	/**
+	 * The number of image names the threads share.
+	 */
+	private static final int NAMES = 32;
+	
+	private static final String USERNAME = "stress";
+	
+	/**
+	 * Checks that the image data, files and cache of {@code repository} agree
+	 * for every name.
+	 *
+	 * @return number of disagreements found, each of which is printed
+	 * @since 2021-01-26
+	 */
+	private static final int check(ImageRepository repository) {
+		int problems = 0;
+		for (int i = 0; i < NAMES; i++) {
+			final String name = name(i);
+			final boolean hasData = repository.getImageData(name) != null;
+			final boolean hasFile = Files.exists(repository.getPath(name));
+			final boolean isCached = repository.getImageCache()
+					.peek(name) != null;
+			
+			if (hasData != hasFile) {
+				System.out.printf("%s: %s but %s%n", name,
+						hasData ? "has data" : "has no data",
+						hasFile ? "has a file" : "has no file");
+				problems++;
+			}
+			if (isCached && !hasData) {
+				System.out.printf("%s: cached but has no data%n", name);
+				problems++;
+			}
+		}
+		return problems;
+	}
+	
+	/**
+	 * @param args commandline arguments: the repository directory, an image
+	 *             file to add, and optionally the number of threads and number
+	 *             of seconds to run for
+	 * @since 2021-01-26
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2 || args.length > 4) {
+			System.err.println("Usage: ImageRepositoryStressTest <directory> "
+					+ "<image> [threads] [seconds]");
+			System.exit(2);
+		}
+		
+		final File directory = new File(args[0]);
+		final File image = new File(args[1]);
+		final int threads = args.length > 2 ? Integer.parseInt(args[2])
+				: DEFAULT_THREADS;
+		final int seconds = args.length > 3 ? Integer.parseInt(args[3])
+				: DEFAULT_SECONDS;
+		
+		final ImageRepository repository = ImageRepository
+				.fromDirectory(directory);
+		final long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(seconds);
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<Long>> futures = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(() -> {
+				long operations = 0;
+				while (System.nanoTime() < deadline) {
+					run(repository, image);
+					operations++;
+				}
+				return operations;
+			}));
+		}
+		executor.shutdown();
+		
+		long operations = 0;
+		for (final Future<Long> future : futures) {
+			operations += future.get();
+		}
+		repository.whenDurable().join();
+		System.out.printf("%d operations in %d s on %d threads%n", operations,
+				seconds, threads);
+		System.out.println(repository.getImageCache());
+		
+		int problems = check(repository);
+		
+		// the data that was saved must match the files too
+		problems += check(ImageRepository.fromDirectory(directory));
+		
+		System.out.println(problems == 0 ? "OK" : problems + " problems");
+		System.exit(problems == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * @return the {@code i}th image name the threads share
+	 * @since 2021-01-26
+	 */
+	private static final String name(int i) {
+		return "stress" + i + ".png";
+	}
+	
+	/**
+	 * Does one randomly chosen operation on a random image.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final void run(ImageRepository repository, File image) {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final String name = name(random.nextInt(NAMES));
+		switch (random.nextInt(6)) {
+		case 0:
+			repository.addImages(Map.of(name, image), USERNAME,
+					random.nextBoolean(), null);
+			break;
+		case 1:
+			repository.removeImage(name, USERNAME);
+			break;
+		case 2:
+			final String other = name(random.nextInt(NAMES));
+			repository.removeImages(
+					other.equals(name) ? List.of(name) : List.of(name, other),
+					USERNAME);
+			break;
+		default:
+			// images may still be removed before they are read, which is
+			// reported but harmless
+			if (repository.getImageData(name) == null) {
+				break;
+			} else if (random.nextBoolean()) {
+				repository.getImage(name);
+			} else {
+				repository.getImage(name, 32, 32);
+			}
+			break;
+		}
+	}
+	
+	private ImageRepositoryStressTest() {
+		throw new AssertionError();
+	}
+}
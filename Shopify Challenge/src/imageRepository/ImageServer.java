@@ -0,0 +1,634 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves an image repository over HTTP, without a GUI.
+ * <p>
+ * The server supports these requests:
+ * <ul>
+ * <li>{@code GET /images?cursor=...&limit=...} lists, one per line, the names
+ * of the images visible to the user. If there are more, the cursor of the
+ * next page is sent in the {@code X-Next-Cursor} header.</li>
+ * <li>{@code GET /images/<name>} downloads an image. Single byte ranges
+ * ({@code Range}) and conditional requests ({@code If-None-Match}) are
+ * supported. Private images can only be downloaded by their owner.</li>
+ * <li>{@code PUT /images/<name>?public=true} uploads an image, which is private
+ * unless {@code public} is true.</li>
+ * <li>{@code DELETE /images/<name>} removes an image owned by the user.</li>
+ * </ul>
+ * Users log in with HTTP basic authentication, which is required for uploads
+ * and deletions. Image files are streamed to and from disk, so no request
+ * holds a whole image in memory.
+ * <p>
+ * Each request is handled on its own virtual thread if the Java runtime has
+ * them, or otherwise on a fixed pool of threads.
+ *
+ * @since 2021-01-26
+ */
+public final class ImageServer {
+	private static final String IMAGES_PATH = "/images";
+	
+	private static final int DEFAULT_PORT = 8080;
+	
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	
+	/**
+	 * The number of threads handling requests if virtual threads are not
+	 * available.
+	 */
+	private static final int FALLBACK_THREADS = 64;
+	
+	/**
+	 * How long credentials are remembered after being verified.
+	 */
+	private static final long VERIFIED_CREDENTIAL_NANOS = TimeUnit.SECONDS
+			.toNanos(60);
+	
+	/**
+	 * The maximum number of verified credentials remembered at once.
+	 */
+	private static final int MAX_VERIFIED_CREDENTIALS = 1024;
+	
+	/**
+	 * A {@code Range} header for a single range of bytes.
+	 */
+	private static final Pattern BYTE_RANGE = Pattern
+			.compile("bytes=(\\d*)-(\\d*)");
+	
+	/**
+	 * @param args commandline arguments: the repository directory, and
+	 *             optionally the port to listen on
+	 * @since 2021-01-26
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: ImageServer <repository directory> [port]");
+			System.exit(2);
+		}
+		
+		// without this, small responses wait for delayed acknowledgements
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		
+		final ImageRepository repository = ImageRepository
+				.fromDirectory(new File(args[0]));
+		final int port = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_PORT;
+		final ImageServer server = new ImageServer(repository,
+				new InetSocketAddress(port));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop();
+			repository.saveImageData();
+		}));
+		server.start();
+		System.out.println("Serving " + args[0] + " on port " + port);
+	}
+	
+	/**
+	 * @return MIME type of the image {@code name}, guessed from its extension
+	 * @since 2021-01-26
+	 */
+	private static final String contentType(String name) {
+		final String type = URLConnection.guessContentTypeFromName(name);
+		return type == null ? "application/octet-stream" : type;
+	}
+	
+	/**
+	 * Creates an executor that runs each task on a new virtual thread, if the
+	 * Java runtime supports them; otherwise, creates a fixed thread pool.
+	 *
+	 * @param fallbackThreads number of threads in the pool used if virtual
+	 *                        threads are not supported
+	 * @since 2021-01-26
+	 */
+	static final ExecutorService newExecutor(int fallbackThreads) {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return Executors.newFixedThreadPool(fallbackThreads);
+		}
+	}
+	
+	/**
+	 * Parses a byte position or length from a {@code Range} header. Numbers
+	 * too large for a long are larger than any file, so they are treated as
+	 * {@link Long#MAX_VALUE}.
+	 *
+	 * @param digits decimal digits
+	 * @since 2021-01-26
+	 */
+	private static final long parsePosition(String digits) {
+		try {
+			return Long.parseLong(digits);
+		} catch (final NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Parses the query string of a request.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final Map<String, String> parseQuery(String query) {
+		if (query == null)
+			return Collections.emptyMap();
+		
+		final Map<String, String> parameters = new HashMap<>();
+		for (final String parameter : query.split("&")) {
+			final int equals = parameter.indexOf('=');
+			if (equals > 0) {
+				parameters.put(
+						URLDecoder.decode(parameter.substring(0, equals),
+								StandardCharsets.UTF_8),
+						URLDecoder.decode(parameter.substring(equals + 1),
+								StandardCharsets.UTF_8));
+			}
+		}
+		return parameters;
+	}
+	
+	/**
+	 * Sends a response with a short text body.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final void sendText(HttpExchange exchange, int status,
+			String text) throws IOException {
+		final byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/plain; charset=utf-8");
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		
+		if (body.length == 0) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+	
+	private final ImageRepository repository;
+	
+	private final HttpServer server;
+	
+	private final ExecutorService executor;
+	
+	/**
+	 * Expiry times, from {@link System#nanoTime}, of credentials that have
+	 * recently been verified, by {@link #credentialKey}.
+	 */
+	private final ConcurrentMap<String, Long> verifiedCredentials =
+			new ConcurrentHashMap<>();
+	
+	/**
+	 * Salt of credential keys, random for each server.
+	 */
+	private final byte[] credentialSalt = new byte[16];
+	
+	/**
+	 * @param repository repository to serve
+	 * @param address    address to listen on
+	 * @throws IOException if the server cannot listen on {@code address}
+	 * @since 2021-01-26
+	 */
+	public ImageServer(ImageRepository repository, InetSocketAddress address)
+			throws IOException {
+		this.repository = repository;
+		this.executor = newExecutor(FALLBACK_THREADS);
+		new SecureRandom().nextBytes(this.credentialSalt);
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext(IMAGES_PATH, this::handle);
+	}
+	
+	/**
+	 * Waits until every change made so far is durable, so that a change is
+	 * only acknowledged once it would survive a crash.
+	 *
+	 * @throws IOException if the changes could not be saved
+	 * @since 2021-01-26
+	 */
+	private final void awaitDurable() throws IOException {
+		try {
+			this.repository.whenDurable().join();
+		} catch (final CompletionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Finds the user logged in by a request's basic authentication header.
+	 * Checking a password is slow, so this is only called by requests that
+	 * need a user, and credentials that have been verified are remembered for
+	 * a short time.
+	 *
+	 * @return user logged in by a request's basic authentication header, or
+	 *         null if the request is not authenticated
+	 * @throws RejectedExecutionException if too many passwords are already
+	 *                                    waiting to be checked
+	 * @since 2021-01-26
+	 */
+	private final User authenticate(HttpExchange exchange) {
+		final String header = exchange.getRequestHeaders()
+				.getFirst("Authorization");
+		if (header == null || !header.startsWith("Basic "))
+			return null;
+		
+		final String credentials;
+		try {
+			credentials = new String(
+					Base64.getDecoder().decode(header.substring(6).trim()),
+					StandardCharsets.UTF_8);
+		} catch (final IllegalArgumentException e) {
+			return null;
+		}
+		
+		final int colon = credentials.indexOf(':');
+		if (colon < 0)
+			return null;
+		final String username = credentials.substring(0, colon);
+		
+		// skip the slow password check if these credentials passed it recently
+		final String key = this.credentialKey(credentials);
+		final Long expiry = this.verifiedCredentials.get(key);
+		if (expiry != null && expiry - System.nanoTime() > 0)
+			return this.repository.getUser(username);
+		
+		final User user;
+		try {
+			user = this.repository
+					.authenticate(username, credentials.substring(colon + 1))
+					.join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof RejectedExecutionException)
+				throw (RejectedExecutionException) e.getCause();
+			throw e;
+		}
+		
+		if (user != null) {
+			if (this.verifiedCredentials.size() >= MAX_VERIFIED_CREDENTIALS) {
+				final long now = System.nanoTime();
+				this.verifiedCredentials.values().removeIf(e -> e - now <= 0);
+				if (this.verifiedCredentials.size() >= MAX_VERIFIED_CREDENTIALS) {
+					this.verifiedCredentials.clear();
+				}
+			}
+			this.verifiedCredentials.put(key,
+					System.nanoTime() + VERIFIED_CREDENTIAL_NANOS);
+		}
+		return user;
+	}
+	
+	/**
+	 * @return key of {@code credentials} in {@link #verifiedCredentials}: a
+	 *         salted SHA-256 digest, so that passwords are not kept in memory
+	 * @since 2021-01-26
+	 */
+	private final String credentialKey(String credentials) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		digest.update(this.credentialSalt);
+		return Base64.getEncoder().encodeToString(
+				digest.digest(credentials.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	/**
+	 * Removes an image.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void delete(HttpExchange exchange, String name)
+			throws IOException {
+		final User user = this.authenticate(exchange);
+		if (user == null) {
+			this.requestAuthentication(exchange);
+		} else if (this.repository.removeImage(name, user.getUsername())) {
+			this.awaitDurable();
+			sendText(exchange, 204, "");
+		} else {
+			sendText(exchange, 404, "No image named " + name
+					+ " is owned by " + user.getUsername() + ".\n");
+		}
+	}
+	
+	/**
+	 * Downloads an image.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void download(HttpExchange exchange, String name)
+			throws IOException {
+		final ImageEntry entry = this.repository.getImageData(name);
+		// only private images need the user, so public ones skip the login
+		final User user = entry == null || entry.isPublic() ? null
+				: this.authenticate(exchange);
+		if (entry == null || !entry.isPublic() && (user == null
+				|| !entry.getUser().get().equals(user.getUsername()))) {
+			sendText(exchange, 404, "No image named " + name + ".\n");
+			return;
+		}
+		
+		final Path path = this.repository.getPath(name);
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final String etag = "\"" + Long.toHexString(size) + "-" + Long
+					.toHexString(Files.getLastModifiedTime(path).toMillis())
+					+ "\"";
+			exchange.getResponseHeaders().set("ETag", etag);
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			exchange.getResponseHeaders().set("Content-Type",
+					contentType(name));
+			
+			final String ifNoneMatch = exchange.getRequestHeaders()
+					.getFirst("If-None-Match");
+			if (ifNoneMatch != null && (ifNoneMatch.equals("*")
+					|| ifNoneMatch.contains(etag))) {
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return;
+			}
+			
+			// find the range to send, ignoring ranges that cannot be parsed or
+			// end before they start
+			long start = 0;
+			long end = size; // exclusive
+			int status = 200;
+			final String range = exchange.getRequestHeaders().getFirst("Range");
+			final Matcher matcher = range == null ? null
+					: BYTE_RANGE.matcher(range.trim());
+			if (matcher != null && matcher.matches()) {
+				final long first = matcher.group(1).isEmpty() ? -1
+						: parsePosition(matcher.group(1));
+				final long last = matcher.group(2).isEmpty() ? -1
+						: parsePosition(matcher.group(2));
+				if (first < 0 && last >= 0) {
+					// suffix range: the last n bytes
+					start = Math.max(0, size - last);
+					status = 206;
+				} else if (first >= 0 && (last < 0 || last >= first)) {
+					start = first;
+					if (last >= 0) {
+						end = Math.min(size - 1, last) + 1;
+					}
+					status = 206;
+				}
+			}
+			
+			if (status == 206) {
+				// only a range starting after the end of the file, or an empty
+				// suffix, cannot be satisfied
+				if (start >= end) {
+					exchange.getResponseHeaders().set("Content-Range",
+							"bytes */" + size);
+					exchange.sendResponseHeaders(416, -1);
+					exchange.close();
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + start + "-" + (end - 1) + "/" + size);
+			}
+			
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Length",
+						Long.toString(end - start));
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+				return;
+			}
+			
+			exchange.sendResponseHeaders(status, end - start);
+			try (OutputStream out = exchange.getResponseBody()) {
+				final WritableByteChannel target = Channels.newChannel(out);
+				long position = start;
+				while (position < end) {
+					final long transferred = channel.transferTo(position,
+							end - position, target);
+					if (transferred == 0) {
+						break; // file was truncated
+					}
+					position += transferred;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Handles every request to the images path. Unexpected errors are printed
+	 * and answered with status 500, if the response has not started yet.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void handle(HttpExchange exchange) throws IOException {
+		try {
+			final String path = exchange.getRequestURI().getPath();
+			final String method = exchange.getRequestMethod();
+			if (path.equals(IMAGES_PATH) || path.equals(IMAGES_PATH + "/")) {
+				if ("GET".equals(method) || "HEAD".equals(method)) {
+					this.list(exchange);
+				} else {
+					this.methodNotAllowed(exchange, "GET, HEAD");
+				}
+				return;
+			}
+			
+			if (!path.startsWith(IMAGES_PATH + "/")) {
+				sendText(exchange, 404, "Not found.\n");
+				return;
+			}
+			final String name = path.substring(IMAGES_PATH.length() + 1);
+			if (!ImageRepository.isValidName(name)) {
+				sendText(exchange, 400, "Invalid image name.\n");
+				return;
+			}
+			
+			switch (method) {
+			case "GET":
+			case "HEAD":
+				this.download(exchange, name);
+				break;
+			case "PUT":
+				this.upload(exchange, name);
+				break;
+			case "DELETE":
+				this.delete(exchange, name);
+				break;
+			default:
+				this.methodNotAllowed(exchange, "GET, HEAD, PUT, DELETE");
+			}
+		} catch (final IllegalArgumentException e) {
+			sendText(exchange, 400, e.getMessage() + "\n");
+		} catch (final RejectedExecutionException e) {
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			sendText(exchange, 503, "Too many logins, try again later.\n");
+		} catch (final IOException | RuntimeException e) {
+			e.printStackTrace();
+			// the status can only be sent if the response has not started
+			if (exchange.getResponseCode() == -1) {
+				sendText(exchange, 500, "Internal server error.\n");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Lists the images visible to a user.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void list(HttpExchange exchange) throws IOException {
+		// private images are only listed for users who log in
+		final User user = this.authenticate(exchange);
+		final Map<String, String> query = parseQuery(
+				exchange.getRequestURI().getRawQuery());
+		final int limit = query.containsKey("limit")
+				? Integer.parseInt(query.get("limit"))
+				: DEFAULT_PAGE_SIZE;
+		
+		final ImagePage page = this.repository.imagePage(
+				user == null ? null : user.getUsername(), limit,
+				query.get("cursor"));
+		
+		final StringBuilder body = new StringBuilder();
+		for (final String name : page.getNames()) {
+			body.append(name).append('\n');
+		}
+		page.getNextCursor().ifPresent(cursor -> exchange.getResponseHeaders()
+				.set("X-Next-Cursor", cursor));
+		sendText(exchange, 200, body.toString());
+	}
+	
+	/**
+	 * Rejects a request with a method that is not supported.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void methodNotAllowed(HttpExchange exchange, String allowed)
+			throws IOException {
+		exchange.getResponseHeaders().set("Allow", allowed);
+		sendText(exchange, 405, "Method not allowed.\n");
+	}
+	
+	/**
+	 * Asks the client to log in.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void requestAuthentication(HttpExchange exchange)
+			throws IOException {
+		exchange.getResponseHeaders().set("WWW-Authenticate",
+				"Basic realm=\"Image Repository\"");
+		sendText(exchange, 401, "Log in to change images.\n");
+	}
+	
+	/**
+	 * Starts the server in the background.
+	 *
+	 * @since 2021-01-26
+	 */
+	public final void start() {
+		this.server.start();
+	}
+	
+	/**
+	 * Stops the server, waiting up to a second for requests being handled to
+	 * finish.
+	 *
+	 * @since 2021-01-26
+	 */
+	public final void stop() {
+		this.server.stop(1);
+		this.executor.shutdown();
+	}
+	
+	/**
+	 * Uploads an image, streaming the request body into the repository.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void upload(HttpExchange exchange, String name)
+			throws IOException {
+		final User user = this.authenticate(exchange);
+		if (user == null) {
+			this.requestAuthentication(exchange);
+			return;
+		}
+		
+		final boolean isPublic = Boolean.parseBoolean(parseQuery(
+				exchange.getRequestURI().getRawQuery()).get("public"));
+		
+		try {
+			this.repository.addImage(exchange.getRequestBody(), name,
+					user.getUsername(), isPublic);
+		} catch (final FileAlreadyExistsException e) {
+			sendText(exchange, 409,
+					"There is already an image named " + name + ".\n");
+			return;
+		}
+		this.awaitDurable();
+		sendText(exchange, 201, "");
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many requests per second an {@link ImageServer} can handle by
+ * requesting a URL as often as possible from several threads at once, then
+ * prints the throughput and the median and 99th percentile latency.
+ *
+ * @since 2021-01-26
+ */
+public final class ImageServerLoadTest {
+	private static final int DEFAULT_THREADS = 16;
+	
+	private static final int DEFAULT_SECONDS = 10;
+	
+	/**
+	 * Requests a URL repeatedly on one thread, recording the latency of each
+	 * successful request.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final class Worker {
+		private long[] latencies = new long[1024];
+		private int count = 0;
+		private int errors = 0;
+		
+		/**
+		 * Requests {@code request} until {@code deadline}.
+		 *
+		 * @since 2021-01-26
+		 */
+		private final void run(HttpClient client, HttpRequest request,
+				long deadline) throws InterruptedException {
+			while (System.nanoTime() < deadline) {
+				final long start = System.nanoTime();
+				try {
+					final HttpResponse<InputStream> response = client.send(
+							request, HttpResponse.BodyHandlers.ofInputStream());
+					// read the whole body, without keeping it
+					try (InputStream body = response.body()) {
+						body.transferTo(OutputStream.nullOutputStream());
+					}
+					if (response.statusCode() >= 400) {
+						this.errors++;
+						continue;
+					}
+				} catch (final IOException e) {
+					this.errors++;
+					continue;
+				}
+				
+				if (this.count == this.latencies.length) {
+					this.latencies = Arrays.copyOf(this.latencies,
+							this.count * 2);
+				}
+				this.latencies[this.count++] = System.nanoTime() - start;
+			}
+		}
+	}
+	
+	/**
+	 * @param args commandline arguments: the URL to request, and optionally the
+	 *             number of threads and number of seconds to run for
+	 * @since 2021-01-26
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println(
+					"Usage: ImageServerLoadTest <url> [threads] [seconds]");
+			System.exit(2);
+		}
+		
+		final URI uri = URI.create(args[0]);
+		final int threads = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_THREADS;
+		final int seconds = args.length > 2 ? Integer.parseInt(args[2])
+				: DEFAULT_SECONDS;
+		
+		final HttpClient client = HttpClient.newHttpClient();
+		final HttpRequest request = HttpRequest.newBuilder(uri).build();
+		final long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(seconds);
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<Worker>> futures = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(() -> {
+				final Worker worker = new Worker();
+				worker.run(client, request, deadline);
+				return worker;
+			}));
+		}
+		executor.shutdown();
+		
+		// combine the results of every thread
+		long[] latencies = new long[0];
+		int errors = 0;
+		for (final Future<Worker> future : futures) {
+			final Worker worker = future.get();
+			final int start = latencies.length;
+			latencies = Arrays.copyOf(latencies, start + worker.count);
+			System.arraycopy(worker.latencies, 0, latencies, start, worker.count);
+			errors += worker.errors;
+		}
+		Arrays.sort(latencies);
+		
+		System.out.printf("%d requests in %d s (%d errors)%n", latencies.length,
+				seconds, errors);
+		System.out.printf("Throughput: %.1f req/s%n",
+				(double) latencies.length / seconds);
+		if (latencies.length > 0) {
+			System.out.printf("Latency: p50 %.2f ms, p99 %.2f ms%n",
+					percentile(latencies, 0.50) / 1e6,
+					percentile(latencies, 0.99) / 1e6);
+		}
+	}
+	
+	/**
+	 * @return value at {@code fraction} of the way through sorted
+	 *         {@code values}
+	 * @since 2021-01-26
+	 */
+	private static final long percentile(long[] values, double fraction) {
+		final int index = (int) Math.ceil(fraction * values.length) - 1;
+		return values[Math.max(0, index)];
+	}
+	
+	private ImageServerLoadTest() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores the files of the images in a repository. Images are identified by
+ * name, but how their files are laid out on disk depends on the store.
+ * <p>
+ * Stores may be used by several threads at the same time.
+ *
+ * @since 2021-01-26
+ */
+abstract class ImageStore {
+	/**
+	 * Forces {@code file} onto the storage device, then every directory from
+	 * its parent up to {@code root}, so that its name survives a system crash
+	 * as well as its contents. Directories that cannot be opened, as on some
+	 * operating systems, are skipped.
+	 *
+	 * @param file file to force
+	 * @param root last directory to force
+	 * @throws IOException if the file cannot be forced
+	 * @since 2021-01-26
+	 */
+	static final void force(Path file, Path root) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		
+		Path directory = file.getParent();
+		while (directory != null) {
+			try (FileChannel channel = FileChannel.open(directory,
+					StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (final IOException e) {
+				// directories cannot be opened as files here
+			}
+			if (directory.equals(root))
+				return;
+			directory = directory.getParent();
+		}
+	}
+	
+	/**
+	 * Copies a file into the store as the image {@code name}. Unless the
+	 * store's durability is {@link GroupCommitter.Durability#NONE}, the copy
+	 * is forced onto the storage device before this returns, so the image's
+	 * data can be committed after it.
+	 *
+	 * @param name   name of image
+	 * @param source file to copy
+	 * @throws java.nio.file.FileAlreadyExistsException if the store already
+	 *                                                  has an image named
+	 *                                                  {@code name}
+	 * @throws IOException                              if the file cannot be
+	 *                                                  copied
+	 * @since 2021-01-26
+	 */
+	abstract void add(String name, Path source) throws IOException;
+	
+	/**
+	 * Moves the image {@code name} into this store's layout, if it is stored in
+	 * the layout of another store. Stores that cannot find images stored in
+	 * other layouts do nothing.
+	 *
+	 * @param name name of image
+	 * @return true iff the image was moved
+	 * @throws IOException if the image cannot be moved
+	 * @since 2021-01-26
+	 */
+	boolean migrate(String name) throws IOException {
+		return false;
+	}
+	
+	/**
+	 * Moves a file into the store as the image {@code name}, without copying
+	 * its data. Like {@link #add}, the file is forced onto the storage device
+	 * unless the store's durability is
+	 * {@link GroupCommitter.Durability#NONE}.
+	 *
+	 * @param name   name of image
+	 * @param source file to move, which must be on the same file system as the
+	 *               repository directory; it may be left in place if the store
+	 *               already has a file with the same contents
+	 * @throws java.nio.file.FileAlreadyExistsException if the store already
+	 *                                                  has an image named
+	 *                                                  {@code name}
+	 * @throws IOException                              if the file cannot be
+	 *                                                  moved
+	 * @since 2021-01-26
+	 */
+	abstract void move(String name, Path source) throws IOException;
+	
+	/**
+	 * @return future that completes once every change to the store's own
+	 *         records made so far is durable; stores that keep no records of
+	 *         their own return a completed future
+	 * @since 2021-01-26
+	 */
+	CompletableFuture<Void> whenDurable() {
+		return CompletableFuture.completedFuture(null);
+	}
+	
+	/**
+	 * @param name name of image
+	 * @return location of the file of image {@code name}, which must only be
+	 *         read
+	 * @since 2021-01-26
+	 */
+	abstract Path path(String name);
+	
+	/**
+	 * Removes the image {@code name} from the store.
+	 *
+	 * @param name name of image
+	 * @throws java.nio.file.NoSuchFileException if there is no image named
+	 *                                           {@code name}
+	 * @throws IOException                       if the image cannot be removed
+	 * @since 2021-01-26
+	 */
+	abstract void remove(String name) throws IOException;
+}
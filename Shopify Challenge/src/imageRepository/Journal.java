@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import imageRepository.GroupCommitter.Durability;
+
+/**
+ * An append-only log of one-line records. Appending a record costs the same no
+ * matter how many records are already in the log, so mutations can be
+ * persisted without rewriting everything else.
+ * <p>
+ * Records are appended atomically with respect to each other, so a journal may
+ * be shared between threads. Appended records are written to the file in
+ * groups by a {@link GroupCommitter}, so appending does not wait for the file
+ * unless the journal's durability is {@link Durability#PER_OP_FSYNC}.
+ *
+ * @since 2021-01-18
+ */
+final class Journal {
+	/**
+	 * Opens the journal stored in {@code file}, passing every record already in
+	 * it to {@code replay} in the order they were appended.
+	 *
+	 * @param file       file the journal is stored in; does not need to exist
+	 * @param replay     action to run on each existing record
+	 * @param durability when appended records count as durable
+	 * @return journal
+	 * @since 2021-01-18
+	 */
+	static final Journal open(File file, Consumer<String> replay,
+			Durability durability) {
+		int records = 0;
+		
+		if (file.exists()) {
+			try (BufferedReader reader = new BufferedReader(
+					new FileReader(file))) {
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty()) {
+						replay.accept(line);
+						records++;
+					}
+				}
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		return new Journal(file, records, durability);
+	}
+	
+	private final File file;
+	
+	/**
+	 * The number of records in the journal.
+	 */
+	private int records;
+	
+	/**
+	 * Records appended but not yet written to the file.
+	 */
+	private List<String> unwritten = new ArrayList<>();
+	
+	/**
+	 * Held while the file is written, so records are written in order and
+	 * never while the file is being replaced.
+	 */
+	private final Object fileLock = new Object();
+	
+	private final GroupCommitter committer;
+	
+	private final Durability durability;
+	
+	/**
+	 * Creates a journal for a file whose records have already been read.
+	 *
+	 * @param file       file the journal is stored in
+	 * @param records    number of records already in the file
+	 * @param durability when appended records count as durable
+	 * @since 2021-01-18
+	 */
+	Journal(File file, int records, Durability durability) {
+		this.file = file;
+		this.records = records;
+		this.durability = durability;
+		this.committer = new GroupCommitter(durability, this::write);
+	}
+	
+	/**
+	 * Appends a record to the end of the journal.
+	 *
+	 * @param record record to append, must not contain line breaks
+	 * @return future that completes once the record is durable
+	 * @since 2021-01-18
+	 */
+	final CompletableFuture<Void> append(String record) {
+		return this.appendAll(Collections.singletonList(record));
+	}
+	
+	/**
+	 * Appends several records to the end of the journal, to be written
+	 * together.
+	 *
+	 * @param records records to append, in order; must not contain line breaks
+	 * @return future that completes once the records are durable
+	 * @since 2021-01-26
+	 */
+	final CompletableFuture<Void> appendAll(Collection<String> records) {
+		synchronized (this) {
+			this.unwritten.addAll(records);
+			this.records += records.size();
+		}
+		return this.committer.commit();
+	}
+	
+	/**
+	 * Removes every record from the journal. Call this once the records have
+	 * been saved somewhere else. Records that have been appended but not yet
+	 * written are kept and written afterwards, which is harmless even if they
+	 * were saved too, since replaying a record again has no effect.
+	 *
+	 * @since 2021-01-18
+	 */
+	final void clear() {
+		synchronized (this.fileLock) {
+			try {
+				Files.write(this.file.toPath(), new byte[0]);
+				synchronized (this) {
+					this.records = this.unwritten.size();
+				}
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Replaces every record in the journal with the records from
+	 * {@code snapshot}, for example to compact it. The records are written to
+	 * a temporary file that replaces the journal when complete, so the old
+	 * records are kept if this fails. Like {@link #clear}, records that have
+	 * not been written yet are kept.
+	 * <p>
+	 * {@code snapshot} is called while no records can be written, so a record
+	 * appended after the state it describes changed is either in the snapshot
+	 * or written after it, and is never lost.
+	 *
+	 * @param snapshot supplies the records to replace the journal with
+	 * @throws IOException if the journal cannot be replaced
+	 * @since 2021-01-26
+	 */
+	final void rewrite(Supplier<? extends Collection<String>> snapshot)
+			throws IOException {
+		synchronized (this.fileLock) {
+			final Collection<String> records = snapshot.get();
+			final File tempFile = new File(this.file.getPath() + ".tmp");
+			try (FileWriter writer = new FileWriter(tempFile)) {
+				for (final String record : records) {
+					writer.write(record + "\n");
+				}
+			}
+			if (this.durability != Durability.NONE) {
+				try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+						StandardOpenOption.WRITE)) {
+					channel.force(false);
+				}
+			}
+			
+			Files.move(tempFile.toPath(), this.file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			synchronized (this) {
+				this.records = records.size() + this.unwritten.size();
+			}
+		}
+	}
+	
+	/**
+	 * @return number of records in the journal
+	 * @since 2021-01-18
+	 */
+	final synchronized int size() {
+		return this.records;
+	}
+	
+	/**
+	 * @return future that completes once every record appended so far is
+	 *         durable
+	 * @since 2021-01-26
+	 */
+	final CompletableFuture<Void> whenDurable() {
+		return this.committer.whenDurable();
+	}
+	
+	/**
+	 * Writes the records that have been appended since the last write to the
+	 * file, in a single write.
+	 *
+	 * @param sync if true, also synchronize the file onto the storage device
+	 * @since 2021-01-26
+	 */
+	private final void write(boolean sync) throws IOException {
+		synchronized (this.fileLock) {
+			final List<String> records;
+			synchronized (this) {
+				records = this.unwritten;
+				this.unwritten = new ArrayList<>();
+			}
+			if (records.isEmpty())
+				return;
+			
+			final StringBuilder text = new StringBuilder();
+			for (final String record : records) {
+				text.append(record).append('\n');
+			}
+			
+			// records are encoded like FileWriter, as they are read by FileReader
+			final ByteBuffer bytes = Charset.defaultCharset()
+					.encode(text.toString());
+			try (FileChannel channel = FileChannel.open(this.file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND)) {
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+				if (sync) {
+					channel.force(false);
+				}
+			} catch (final IOException e) {
+				// keep the records to try again with the next group; replaying a
+				// record twice has no effect
+				synchronized (this) {
+					records.addAll(this.unwritten);
+					this.unwritten = records;
+				}
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when a repository data file contains lines that cannot be parsed.
+ * Lists every malformed line, not just the first one.
+ *
+ * @since 2021-01-20
+ */
+public final class MalformedFileException extends IllegalStateException {
+	private static final long serialVersionUID = -2315904718829460347L;
+	
+	/**
+	 * The maximum number of malformed lines included in the message.
+	 */
+	private static final int MAX_LINES_IN_MESSAGE = 10;
+	
+	/**
+	 * Creates the exception message.
+	 *
+	 * @since 2021-01-20
+	 */
+	private static final String message(File file, List<Long> offsets,
+			List<String> lines) {
+		final StringBuilder message = new StringBuilder();
+		message.append("Invalid ").append(file.getName()).append(" file: ")
+				.append(offsets.size()).append(" malformed line(s).");
+		
+		for (int i = 0; i < Math.min(offsets.size(), MAX_LINES_IN_MESSAGE); i++) {
+			message.append("\n  at byte ").append(offsets.get(i)).append(": \"")
+					.append(lines.get(i)).append('"');
+		}
+		if (offsets.size() > MAX_LINES_IN_MESSAGE) {
+			message.append("\n  ...");
+		}
+		
+		return message.toString();
+	}
+	
+	private final File file;
+	
+	private final List<Long> offsets;
+	
+	private final List<String> lines;
+	
+	/**
+	 * @param file    file that was being read
+	 * @param offsets byte offset of the start of each malformed line
+	 * @param lines   text of each malformed line
+	 * @since 2021-01-20
+	 */
+	public MalformedFileException(File file, List<Long> offsets,
+			List<String> lines) {
+		super(message(file, offsets, lines));
+		this.file = file;
+		this.offsets = Collections.unmodifiableList(offsets);
+		this.lines = Collections.unmodifiableList(lines);
+	}
+	
+	/**
+	 * @return file that was being read
+	 * @since 2021-01-20
+	 */
+	public final File getFile() {
+		return this.file;
+	}
+	
+	/**
+	 * @return text of each malformed line, in the same order as
+	 *         {@link #getOffsets}
+	 * @since 2021-01-20
+	 */
+	public final List<String> getLines() {
+		return this.lines;
+	}
+	
+	/**
+	 * @return byte offset of the start of each malformed line, in file order
+	 * @since 2021-01-20
+	 */
+	public final List<Long> getOffsets() {
+		return this.offsets;
+	}
+}
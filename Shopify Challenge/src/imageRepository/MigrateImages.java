@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+
+/**
+ * A command-line tool that moves the images of a repository into the layout
+ * chosen by its configuration, using
+ * {@link ImageRepository#migrateImages(ProgressListener)}. For example, to
+ * shard an existing repository, set {@code image.storage=sharded} in its
+ * repository.properties and run this on it. If the tool is interrupted, run
+ * it again to continue.
+ * <p>
+ * This tool opens the repository itself, so nothing else may use the
+ * repository, like the GUI or an {@link ImageServer}, until it finishes.
+ *
+ * @since 2021-01-26
+ */
+public final class MigrateImages {
+	/**
+	 * @param args commandline arguments: the repository directory
+	 * @since 2021-01-26
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: MigrateImages <repository directory>");
+			System.exit(2);
+		}
+		
+		final ImageRepository repository = ImageRepository
+				.fromDirectory(new File(args[0]));
+		final BatchResult result = repository
+				.migrateImages((completed, total) -> {
+					if (completed % 1000 == 0 || completed == total) {
+						System.out.printf("%d/%d images checked%n", completed,
+								total);
+					}
+				});
+		
+		System.out.println(result);
+		for (final String name : result.getFailures().keySet()) {
+			System.err.println(name + ": " + result.getFailures().get(name));
+		}
+		System.exit(result.isSuccessful() ? 0 : 1);
+	}
+	
+	private MigrateImages() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Gives out image names that are not already taken.
+ * <p>
+ * If a name is taken, a number is added before its extension, like
+ * "image(2).png". Rather than trying numbers until a free name is found, the
+ * allocator remembers the highest number used with each base name, so a free
+ * name is found with a single lookup. Allocation is atomic, so two threads
+ * never get the same name.
+ * <p>
+ * The highest number of a base name is found the first time it is needed, by
+ * scanning the image data store for names starting with the base name. So
+ * opening a repository does not look at every name, and only base names that
+ * are used get a counter.
+ *
+ * @since 2021-01-26
+ */
+final class NameAllocator {
+	/**
+	 * A name with a number, like "image(2).png".
+	 */
+	private static final Pattern NUMBERED_NAME = Pattern
+			.compile("(.+)\\((\\d+)\\)(\\.\\w+)?");
+	
+	/**
+	 * A name split into its base name and number.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final class Name {
+		/**
+		 * Splits a name into its base name and number. Names without a number
+		 * have number 0.
+		 *
+		 * @since 2021-01-26
+		 */
+		private static final Name parse(String name) {
+			final Matcher matcher = NUMBERED_NAME.matcher(name);
+			if (matcher.matches()) {
+				try {
+					final int number = Integer.parseInt(matcher.group(2));
+					if (number > 0)
+						return new Name(matcher.group(1),
+								matcher.group(3) == null ? "" : matcher.group(3),
+								number);
+				} catch (final NumberFormatException e) {
+					// too large to be a number we gave out
+				}
+			}
+			
+			final int dot = name.lastIndexOf('.');
+			if (dot > 0)
+				return new Name(name.substring(0, dot), name.substring(dot), 0);
+			else
+				return new Name(name, "", 0);
+		}
+		
+		private final String stem;
+		private final String extension;
+		private final int number;
+		
+		/**
+		 * @since 2021-01-26
+		 */
+		private Name(String stem, String extension, int number) {
+			this.stem = stem;
+			this.extension = extension;
+			this.number = number;
+		}
+		
+		/**
+		 * @return key shared by every name with the same base name
+		 * @since 2021-01-26
+		 */
+		private final String baseKey() {
+			return this.stem + "\0" + this.extension;
+		}
+		
+		/**
+		 * @return the name with this base name and {@code number}
+		 * @since 2021-01-26
+		 */
+		private final String withNumber(int number) {
+			return number == 0 ? this.stem + this.extension
+					: this.stem + "(" + number + ")" + this.extension;
+		}
+	}
+	
+	/**
+	 * The image data whose names are taken.
+	 */
+	private final ImageDataStore data;
+	
+	/**
+	 * The highest number used with each base name found so far, by
+	 * {@link Name#baseKey()}.
+	 */
+	private final ConcurrentMap<String, Integer> highestNumbers =
+			new ConcurrentHashMap<>();
+	
+	/**
+	 * @param data image data whose names are taken
+	 * @since 2021-01-26
+	 */
+	NameAllocator(ImageDataStore data) {
+		this.data = data;
+	}
+	
+	/**
+	 * Takes a name that is not already taken. If {@code requested} is free, it
+	 * is used; otherwise it is given a number higher than any used with the
+	 * same base name.
+	 *
+	 * @param requested name to use if possible
+	 * @return name taken
+	 * @since 2021-01-26
+	 */
+	final String allocate(String requested) {
+		final Name name = Name.parse(requested);
+		this.findHighestNumber(name);
+		final int number = this.highestNumbers.merge(name.baseKey(),
+				name.number,
+				(highest, wanted) -> wanted > highest ? wanted : highest + 1);
+		return name.withNumber(number);
+	}
+	
+	/**
+	 * Makes sure the highest number used with {@code name}'s base name is
+	 * known, scanning the image data for it if it is not.
+	 *
+	 * @since 2021-01-26
+	 */
+	private final void findHighestNumber(Name name) {
+		this.highestNumbers.computeIfAbsent(name.baseKey(), key -> {
+			int highest = this.data.containsKey(name.withNumber(0)) ? 0 : -1;
+			
+			// numbered names are the ones starting with the stem then "("
+			final String prefix = name.stem + "(";
+			for (final Iterator<String> names = this.data
+					.namesFrom(prefix); names.hasNext();) {
+				final String taken = names.next();
+				if (!taken.startsWith(prefix)) {
+					break;
+				}
+				final Name takenName = Name.parse(taken);
+				if (takenName.baseKey().equals(key)) {
+					highest = Math.max(highest, takenName.number);
+				}
+			}
+			return highest;
+		});
+	}
+	
+	/**
+	 * Marks a name as taken, for names chosen without this allocator.
+	 *
+	 * @param taken name that is taken
+	 * @since 2021-01-26
+	 */
+	final void reserve(String taken) {
+		final Name name = Name.parse(taken);
+		this.findHighestNumber(name);
+		this.highestNumbers.merge(name.baseKey(), name.number, Math::max);
+	}
+}
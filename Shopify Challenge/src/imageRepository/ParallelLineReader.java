@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Reads a text file with one record per line, parsing the lines in parallel.
+ * <p>
+ * The file is split into chunks whose boundaries are moved forward to the
+ * start of the next line, and each chunk is memory-mapped and parsed as a
+ * separate task on the common fork-join pool. Lines that cannot be parsed are
+ * collected along with their byte offsets and reported together once the whole
+ * file has been read.
+ *
+ * @since 2021-01-20
+ */
+final class ParallelLineReader {
+	/**
+	 * Files are never split into chunks smaller than this, since parsing a small
+	 * chunk takes less time than starting a task for it.
+	 */
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	
+	/**
+	 * The number of chunks given to each thread in the pool, so that threads
+	 * that finish early can steal work from the others.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+	
+	/**
+	 * The results of parsing one or more consecutive chunks.
+	 *
+	 * @since 2021-01-20
+	 */
+	private static final class Results<T> {
+		private final List<T> values = new ArrayList<>();
+		private final List<Long> errorOffsets = new ArrayList<>();
+		private final List<String> errorLines = new ArrayList<>();
+		
+		/**
+		 * Adds the results of the chunks after this one to these results.
+		 *
+		 * @since 2021-01-20
+		 */
+		private final Results<T> append(Results<T> next) {
+			this.values.addAll(next.values);
+			this.errorOffsets.addAll(next.errorOffsets);
+			this.errorLines.addAll(next.errorLines);
+			return this;
+		}
+	}
+	
+	/**
+	 * A task that parses the chunks between two boundaries.
+	 *
+	 * @since 2021-01-20
+	 */
+	private static final class ParseTask<T> extends RecursiveTask<Results<T>> {
+		private static final long serialVersionUID = 3125587203484906291L;
+		
+		private final FileChannel channel;
+		private final Charset charset;
+		private final Function<String, T> parser;
+		private final long[] boundaries;
+		private final int from;
+		private final int to;
+		
+		/**
+		 * @param boundaries byte offsets of the start of each chunk, followed by
+		 *                   the size of the file
+		 * @param from       index in {@code boundaries} of the first chunk
+		 * @param to         index in {@code boundaries} after the last chunk
+		 * @since 2021-01-20
+		 */
+		private ParseTask(FileChannel channel, Charset charset,
+				Function<String, T> parser, long[] boundaries, int from, int to) {
+			this.channel = channel;
+			this.charset = charset;
+			this.parser = parser;
+			this.boundaries = boundaries;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected Results<T> compute() {
+			if (this.to - this.from == 1)
+				return this.parseChunk(this.boundaries[this.from],
+						this.boundaries[this.to]);
+			
+			final int middle = (this.from + this.to) >>> 1;
+			final ParseTask<T> second = new ParseTask<>(this.channel,
+					this.charset, this.parser, this.boundaries, middle, this.to);
+			second.fork();
+			final Results<T> first = new ParseTask<>(this.channel, this.charset,
+					this.parser, this.boundaries, this.from, middle).compute();
+			return first.append(second.join());
+		}
+		
+		/**
+		 * Parses every line between {@code start} and {@code end}.
+		 *
+		 * @since 2021-01-20
+		 */
+		private final Results<T> parseChunk(long start, long end) {
+			final Results<T> results = new Results<>();
+			final ByteBuffer buffer;
+			try {
+				buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, start,
+						end - start);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			
+			int lineStart = 0;
+			while (lineStart < buffer.limit()) {
+				int lineEnd = lineStart;
+				while (lineEnd < buffer.limit() && buffer.get(lineEnd) != '\n') {
+					lineEnd++;
+				}
+				
+				// decode line, ignoring the carriage return of CRLF endings
+				int textEnd = lineEnd;
+				if (textEnd > lineStart && buffer.get(textEnd - 1) == '\r') {
+					textEnd--;
+				}
+				final byte[] bytes = new byte[textEnd - lineStart];
+				buffer.position(lineStart);
+				buffer.get(bytes);
+				final String line = new String(bytes, this.charset);
+				
+				try {
+					results.values.add(this.parser.apply(line));
+				} catch (final RuntimeException e) {
+					results.errorOffsets.add(start + lineStart);
+					results.errorLines.add(line);
+				}
+				
+				lineStart = lineEnd + 1;
+			}
+			
+			return results;
+		}
+	}
+	
+	/**
+	 * Finds the offset of the start of the first line that starts at or after
+	 * {@code position}.
+	 *
+	 * @since 2021-01-20
+	 */
+	private static final long nextLineStart(FileChannel channel, long position)
+			throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long bufferStart = position - 1; // may already be at the start of a line
+		while (bufferStart < channel.size()) {
+			buffer.clear();
+			final int read = channel.read(buffer, bufferStart);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n')
+					return bufferStart + i + 1;
+			}
+			bufferStart += read;
+		}
+		return channel.size();
+	}
+	
+	/**
+	 * Reads and parses every line of {@code file}, in parallel if the file is
+	 * large enough to benefit from it. Lines are decoded with the platform's
+	 * default charset, like {@link java.io.FileReader}.
+	 *
+	 * @param <T>    type of value each line is parsed to
+	 * @param file   file to read
+	 * @param parser function that parses one line, throwing a runtime exception
+	 *               if it is malformed
+	 * @return parsed values, in the same order as the lines in the file
+	 * @throws IOException            if the file cannot be read
+	 * @throws MalformedFileException if any line could not be parsed; this is
+	 *                                only thrown once every line has been tried
+	 * @since 2021-01-20
+	 */
+	static final <T> List<T> read(File file, Function<String, T> parser)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size == 0)
+				return new ArrayList<>();
+			
+			// choose chunk boundaries, moving each to the start of a line
+			final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+			final long chunkSize = Math.max(MIN_CHUNK_SIZE,
+					size / (parallelism * CHUNKS_PER_THREAD) + 1);
+			final List<Long> boundaryList = new ArrayList<>();
+			boundaryList.add(0L);
+			long boundary = nextLineStart(channel, chunkSize);
+			while (boundary < size) {
+				boundaryList.add(boundary);
+				boundary = nextLineStart(channel, boundary + chunkSize);
+			}
+			boundaryList.add(size);
+			
+			final long[] boundaries = new long[boundaryList.size()];
+			for (int i = 0; i < boundaries.length; i++) {
+				boundaries[i] = boundaryList.get(i);
+			}
+			
+			// parse chunks
+			final Results<T> results;
+			try {
+				results = ForkJoinPool.commonPool()
+						.invoke(new ParseTask<>(channel, Charset.defaultCharset(),
+								parser, boundaries, 0, boundaries.length - 1));
+			} catch (final UncheckedIOException e) {
+				throw e.getCause();
+			}
+			
+			if (!results.errorOffsets.isEmpty())
+				throw new MalformedFileException(file, results.errorOffsets,
+						results.errorLines);
+			
+			return results.values;
+		}
+	}
+	
+	private ParallelLineReader() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Measures how many passwords per second can be checked, on one thread and on
+ * several threads at once, with each way {@link User} has hashed passwords:
+ * <ul>
+ * <li>the original SHA-512 code, which created a new digest and hex string for
+ * every check, copied here so it can be compared</li>
+ * <li>the current code checking a SHA-512 hash saved by older versions</li>
+ * <li>the current PBKDF2 code, with the given number of iterations</li>
+ * </ul>
+ *
+ * @since 2021-01-26
+ */
+public final class PasswordHashBenchmark {
+	private static final int DEFAULT_THREADS = 16;
+	
+	private static final int DEFAULT_SECONDS = 5;
+	
+	private static final String PASSWORD = "correct horse battery staple";
+	
+	/**
+	 * Hashes a password the way {@link User} did before it was optimized,
+	 * creating a digest and building a string for every hash.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final String originalHash(String password, byte[] salt) {
+		String generatedHash = null;
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-512");
+			md.update(salt);
+			final byte[] bytes = md.digest(password.getBytes());
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < bytes.length; i++) {
+				sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16)
+						.substring(1));
+			}
+			generatedHash = sb.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new AssertionError();
+		}
+		return generatedHash;
+	}
+	
+	/**
+	 * @param args commandline arguments: optionally the number of threads, the
+	 *             number of seconds to run each measurement for and the number
+	 *             of PBKDF2 iterations
+	 * @since 2021-01-26
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 3) {
+			System.err.println(
+					"Usage: PasswordHashBenchmark [threads] [seconds] [iterations]");
+			System.exit(2);
+		}
+		
+		final int threads = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_THREADS;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_SECONDS;
+		final int iterations = args.length > 2 ? Integer.parseInt(args[2])
+				: User.DEFAULT_ITERATIONS;
+		
+		final byte[] salt = new byte[16];
+		final String originalHash = originalHash(PASSWORD, salt);
+		final User sha512User = User.fromString("sha512:" + originalHash + ":"
+				+ Base64.getEncoder().encodeToString(salt));
+		final User pbkdf2User = User.createUser("pbkdf2", PASSWORD, iterations);
+		
+		for (final int n : new int[] { 1, threads }) {
+			measure("original SHA-512", n, seconds,
+					password -> originalHash(password, salt).equals(originalHash));
+			measure("SHA-512", n, seconds, sha512User::authenticatePassword);
+			measure("PBKDF2 (" + iterations + " iterations)", n, seconds,
+					pbkdf2User::authenticatePassword);
+		}
+	}
+	
+	/**
+	 * Checks the password with {@code check} on {@code threads} threads for
+	 * {@code seconds}, after a warmup of the same length, and prints how many
+	 * checks were done per second.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final void measure(String name, int threads, int seconds,
+			Predicate<String> check) throws Exception {
+		run(threads, seconds, check); // warm up
+		final long checks = run(threads, seconds, check);
+		System.out.printf("%-32s %2d threads: %,12.1f checks/s%n", name,
+				threads, (double) checks / seconds);
+	}
+	
+	/**
+	 * Checks the password with {@code check} on {@code threads} threads for
+	 * {@code seconds}.
+	 *
+	 * @return number of checks done
+	 * @since 2021-01-26
+	 */
+	private static final long run(int threads, int seconds,
+			Predicate<String> check) throws Exception {
+		final long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(seconds);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<Long>> futures = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(() -> {
+				long checks = 0;
+				while (System.nanoTime() < deadline) {
+					if (!check.test(PASSWORD))
+						throw new IllegalStateException("Password rejected.");
+					checks++;
+				}
+				return checks;
+			}));
+		}
+		executor.shutdown();
+		
+		long checks = 0;
+		for (final Future<Long> future : futures) {
+			checks += future.get();
+		}
+		return checks;
+	}
+	
+	private PasswordHashBenchmark() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+/**
+ * Receives updates on the progress of an operation on many images.
+ * <p>
+ * Operations may work on several images at the same time, so a listener may
+ * be called from several threads, and not necessarily in order of
+ * {@code completed}.
+ *
+ * @since 2021-01-26
+ */
+@FunctionalInterface
+public interface ProgressListener {
+	/**
+	 * Called each time the operation finishes with an image, whether or not it
+	 * succeeded.
+	 *
+	 * @param completed number of images finished so far
+	 * @param total     total number of images in the operation
+	 * @since 2021-01-26
+	 */
+	void progress(int completed, int total);
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import imageRepository.GroupCommitter.Durability;
+
+/**
+ * Stores images in two levels of subdirectories of the images directory, so no
+ * directory holds more than a small fraction of the images. The
+ * subdirectories of an image are named after the first and second bytes, in
+ * hexadecimal, of a hash of its name; for example, "cat.png" may be stored as
+ * images/3f/a0/cat.png.
+ * <p>
+ * Images that have not yet been moved from the repository directory by
+ * {@link #migrate} are still found there, so a repository can switch to this
+ * store and be migrated while it is being used.
+ *
+ * @since 2021-01-26
+ */
+final class ShardedImageStore extends ImageStore {
+	static final String SHARD_DIRECTORY_PATH = "images";
+	
+	/**
+	 * @return path of the subdirectory storing {@code name}, relative to the
+	 *         images directory; {@link ThumbnailStore} uses the same
+	 *         subdirectories
+	 * @since 2021-01-26
+	 */
+	static final String shard(String name) {
+		final CRC32 crc = new CRC32();
+		crc.update(name.getBytes(StandardCharsets.UTF_8));
+		final String hash = String.format("%04x", crc.getValue() & 0xFFFF);
+		return hash.substring(0, 2) + File.separator + hash.substring(2);
+	}
+	
+	private final File directory;
+	
+	private final File shardDirectory;
+	
+	private final FileTransfer transfer;
+	
+	private final Durability durability;
+	
+	/**
+	 * @param directory  repository directory
+	 * @param transfer   transfers files into the store
+	 * @param durability when added images count as durable
+	 * @since 2021-01-26
+	 */
+	ShardedImageStore(File directory, FileTransfer transfer,
+			Durability durability) {
+		this.directory = directory;
+		this.shardDirectory = new File(directory, SHARD_DIRECTORY_PATH);
+		this.transfer = transfer;
+		this.durability = durability;
+	}
+	
+	@Override
+	final void add(String name, Path source) throws IOException {
+		if (Files.exists(this.flatPath(name)))
+			throw new FileAlreadyExistsException(name);
+		
+		final Path path = this.shardedPath(name);
+		Files.createDirectories(path.getParent());
+		this.transfer.transfer(source, path);
+		if (this.durability != Durability.NONE) {
+			// the subdirectories may be new too
+			force(path, this.directory.toPath().toAbsolutePath());
+		}
+	}
+	
+	/**
+	 * @return location of image {@code name} if it has not been migrated
+	 * @since 2021-01-26
+	 */
+	private final Path flatPath(String name) {
+		return Path.of(this.directory.getAbsolutePath(), name);
+	}
+	
+	/**
+	 * Moves an image from the repository directory into its subdirectory. Each
+	 * image is moved atomically, so a migration that is interrupted can be
+	 * resumed by migrating every image again.
+	 */
+	@Override
+	final boolean migrate(String name) throws IOException {
+		final Path flatPath = this.flatPath(name);
+		if (!Files.exists(flatPath))
+			return false;
+		
+		final Path path = this.shardedPath(name);
+		Files.createDirectories(path.getParent());
+		Files.move(flatPath, path, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+	
+	@Override
+	final void move(String name, Path source) throws IOException {
+		final Path path = this.shardedPath(name);
+		if (Files.exists(this.flatPath(name)) || Files.exists(path))
+			throw new FileAlreadyExistsException(name);
+		
+		Files.createDirectories(path.getParent());
+		Files.move(source, path, StandardCopyOption.ATOMIC_MOVE);
+		if (this.durability != Durability.NONE) {
+			force(path, this.directory.toPath().toAbsolutePath());
+		}
+	}
+	
+	@Override
+	final Path path(String name) {
+		final Path path = this.shardedPath(name);
+		if (Files.exists(path))
+			return path;
+		
+		final Path flatPath = this.flatPath(name);
+		return Files.exists(flatPath) ? flatPath : path;
+	}
+	
+	@Override
+	final void remove(String name) throws IOException {
+		try {
+			Files.delete(this.shardedPath(name));
+		} catch (final NoSuchFileException e) {
+			Files.delete(this.flatPath(name));
+		}
+	}
+	
+	/**
+	 * @return location of image {@code name} once it has been migrated
+	 * @since 2021-01-26
+	 */
+	private final Path shardedPath(String name) {
+		return Path.of(this.shardDirectory.getAbsolutePath(), shard(name),
+				name);
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared between any number of keys. Each key always
+ * gets the same lock, so operations on one key can be made atomic without
+ * creating a lock per key, while operations on keys with different locks
+ * still run in parallel.
+ *
+ * @since 2021-01-26
+ */
+final class StripedLock {
+	private final Lock[] stripes;
+	
+	/**
+	 * @param stripes number of locks
+	 * @since 2021-01-26
+	 */
+	StripedLock(int stripes) {
+		this.stripes = new Lock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+	}
+	
+	/**
+	 * @param key key to lock
+	 * @return lock of {@code key}
+	 * @since 2021-01-26
+	 */
+	final Lock get(String key) {
+		return this.stripes[this.stripe(key)];
+	}
+	
+	/**
+	 * Gets the locks of several keys, each lock once, in a fixed order. Two
+	 * threads that lock the locks of different sets of keys in this order can
+	 * never deadlock.
+	 *
+	 * @param keys keys to lock
+	 * @return locks of {@code keys}, to be locked in order
+	 * @since 2021-01-26
+	 */
+	final List<Lock> getAll(Collection<String> keys) {
+		final TreeSet<Integer> indices = new TreeSet<>();
+		for (final String key : keys) {
+			indices.add(this.stripe(key));
+		}
+		
+		final List<Lock> locks = new ArrayList<>(indices.size());
+		for (final int index : indices) {
+			locks.add(this.stripes[index]);
+		}
+		return locks;
+	}
+	
+	/**
+	 * @return index of the lock of {@code key}
+	 * @since 2021-01-26
+	 */
+	private final int stripe(String key) {
+		// spread the hash so keys differing only in high bits use different locks
+		final int hash = key.hashCode();
+		return ((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % this.stripes.length;
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2021 Adrien Hopkins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package imageRepository;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stores small versions of the images in a repository, so that previews can be
+ * shown without decoding the full images. Thumbnails are saved as PNG files
+ * under the name of their image, in two levels of subdirectories of the
+ * repository's thumbnails directory chosen like those of
+ * {@link ShardedImageStore}, so no directory holds too many thumbnails.
+ * <p>
+ * Thumbnails stored directly in the thumbnails directory, as they were before
+ * it had subdirectories, are still found there until they are moved by
+ * {@link #migrate}.
+ *
+ * @since 2021-01-25
+ */
+final class ThumbnailStore {
+	/**
+	 * Scales an image down to fit within the given bounds, keeping its aspect
+	 * ratio. Large reductions are done in several halving steps, which looks
+	 * much better than a single bilinear step.
+	 *
+	 * @param image     image to scale
+	 * @param maxWidth  maximum width of scaled image
+	 * @param maxHeight maximum height of scaled image
+	 * @return scaled image, or {@code image} itself if it already fits
+	 * @since 2021-01-25
+	 */
+	static final BufferedImage scaleToFit(BufferedImage image, int maxWidth,
+			int maxHeight) {
+		final double scale = Math.min((double) maxWidth / image.getWidth(),
+				(double) maxHeight / image.getHeight());
+		if (scale >= 1)
+			return image;
+		
+		final int targetWidth = Math.max(1, (int) (image.getWidth() * scale));
+		final int targetHeight = Math.max(1, (int) (image.getHeight() * scale));
+		final int type = image.getColorModel().hasAlpha()
+				? BufferedImage.TYPE_INT_ARGB
+				: BufferedImage.TYPE_INT_RGB;
+		
+		BufferedImage scaled = image;
+		int width = image.getWidth();
+		int height = image.getHeight();
+		do {
+			width = Math.max(targetWidth, width / 2);
+			height = Math.max(targetHeight, height / 2);
+			
+			final BufferedImage step = new BufferedImage(width, height, type);
+			final Graphics2D graphics = step.createGraphics();
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(scaled, 0, 0, width, height, null);
+			graphics.dispose();
+			scaled = step;
+		} while (width != targetWidth || height != targetHeight);
+		
+		return scaled;
+	}
+	
+	private final File directory;
+	
+	private final int maxWidth;
+	
+	private final int maxHeight;
+	
+	/**
+	 * @param directory directory to store thumbnails in; created when the first
+	 *                  thumbnail is stored
+	 * @param maxWidth  maximum width of thumbnails
+	 * @param maxHeight maximum height of thumbnails
+	 * @since 2021-01-25
+	 */
+	ThumbnailStore(File directory, int maxWidth, int maxHeight) {
+		this.directory = directory;
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+	}
+	
+	/**
+	 * Creates and stores the thumbnail of an image, replacing any existing
+	 * thumbnail for it.
+	 *
+	 * @param name  name of image
+	 * @param image decoded image
+	 * @return thumbnail
+	 * @throws IOException if the thumbnail cannot be saved
+	 * @since 2021-01-25
+	 */
+	final BufferedImage create(String name, BufferedImage image)
+			throws IOException {
+		final BufferedImage thumbnail = scaleToFit(image, this.maxWidth,
+				this.maxHeight);
+		
+		// write to a temporary file first so a thumbnail is never read half
+		// written
+		Files.createDirectories(this.directory.toPath());
+		final File tempFile = File.createTempFile("thumbnail", ".tmp",
+				this.directory);
+		try {
+			ImageIO.write(thumbnail, "png", tempFile);
+			final File file = this.file(name);
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.move(tempFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
+		}
+		Files.deleteIfExists(this.flatFile(name).toPath());
+		
+		return thumbnail;
+	}
+	
+	/**
+	 * Deletes the thumbnail of an image, if it has one.
+	 *
+	 * @param name name of image
+	 * @throws IOException if the thumbnail cannot be deleted
+	 * @since 2021-01-25
+	 */
+	final void delete(String name) throws IOException {
+		Files.deleteIfExists(this.file(name).toPath());
+		Files.deleteIfExists(this.flatFile(name).toPath());
+	}
+	
+	/**
+	 * @return file storing the thumbnail of {@code name}
+	 * @since 2021-01-25
+	 */
+	private final File file(String name) {
+		return new File(this.directory,
+				ShardedImageStore.shard(name) + File.separator + name + ".png");
+	}
+	
+	/**
+	 * @return file storing the thumbnail of {@code name} if it has not been
+	 *         migrated
+	 * @since 2021-01-26
+	 */
+	private final File flatFile(String name) {
+		return new File(this.directory, name + ".png");
+	}
+	
+	/**
+	 * Gets the stored thumbnail of an image.
+	 *
+	 * @param name name of image
+	 * @return thumbnail, or null if the image does not have one yet
+	 * @throws IOException if the thumbnail cannot be read
+	 * @since 2021-01-25
+	 */
+	final BufferedImage get(String name) throws IOException {
+		final File file = this.file(name);
+		if (file.exists())
+			return ImageIO.read(file);
+		
+		final File flatFile = this.flatFile(name);
+		return flatFile.exists() ? ImageIO.read(flatFile) : null;
+	}
+	
+	/**
+	 * Moves the thumbnail of an image from the thumbnails directory into its
+	 * subdirectory, if it is not there already. Each thumbnail is moved
+	 * atomically.
+	 *
+	 * @param name name of image
+	 * @return true iff the thumbnail was moved
+	 * @throws IOException if the thumbnail cannot be moved
+	 * @since 2021-01-26
+	 */
+	final boolean migrate(String name) throws IOException {
+		final File flatFile = this.flatFile(name);
+		if (!flatFile.exists())
+			return false;
+		
+		// a thumbnail in the subdirectory was created later, so it is kept
+		final File file = this.file(name);
+		if (file.exists()) {
+			Files.delete(flatFile.toPath());
+			return false;
+		}
+		
+		Files.createDirectories(file.getParentFile().toPath());
+		Files.move(flatFile.toPath(), file.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+}
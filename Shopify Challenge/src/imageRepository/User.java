@@ -16,17 +16,84 @@
  */
 package imageRepository;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
 /**
  * A user of the repository.
+ * <p>
+ * Passwords are stored as a salted PBKDF2-HMAC-SHA512 hash, whose cost is
+ * chosen when it is made. The iteration count is stored with the hash as
+ * "pbkdf2-sha512$iterations$hash", so the cost can be raised without making
+ * existing hashes invalid; hashes without a prefix are from older versions,
+ * which stored a single salted SHA-512 hash. Passwords are checked in constant
+ * time, so that no timing information is leaked.
+ * <p>
+ * Checking a password on purpose takes a long time, so it should not be done
+ * on the event dispatch thread; see {@link ImageRepository#authenticate}.
  *
  * @since 2021-01-17
  */
 public final class User {
+	/**
+	 * The number of PBKDF2 iterations used for new password hashes, unless the
+	 * repository chooses another.
+	 */
+	public static final int DEFAULT_ITERATIONS = 120_000;
+	
+	/**
+	 * The prefix of PBKDF2 password hashes.
+	 */
+	private static final String PBKDF2_PREFIX = "pbkdf2-sha512$";
+	
+	/**
+	 * The length of PBKDF2 password hashes, in bits.
+	 */
+	private static final int PBKDF2_KEY_LENGTH = 512;
+	
+	/**
+	 * The key factory used to hash passwords on each thread.
+	 */
+	private static final ThreadLocal<SecretKeyFactory> PBKDF2 = ThreadLocal
+			.withInitial(() -> {
+				try {
+					return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+				} catch (final NoSuchAlgorithmException e) {
+					throw new AssertionError(e);
+				}
+			});
+	
+	/**
+	 * The digest used to check old password hashes on each thread, reused
+	 * between hashes since creating one is slow.
+	 */
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal
+			.withInitial(() -> {
+				try {
+					return MessageDigest.getInstance("SHA-512");
+				} catch (final NoSuchAlgorithmException e) {
+					throw new AssertionError(e);
+				}
+			});
+	
+	/**
+	 * Generates salts. This is safe to share between threads, and seeding it
+	 * once is much cheaper than seeding a new one for each salt.
+	 */
+	private static final SecureRandom SALT_GENERATOR = new SecureRandom();
+	
+	private static final int SALT_LENGTH = 16;
+	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
 	/**
 	 * Creates a new user with username {@code username} and password
 	 * {@code password}.
@@ -35,11 +102,46 @@ public final class User {
 	 * @since 2021-01-17
 	 */
 	public static final User createUser(String username, String password) {
+		return createUser(username, password, DEFAULT_ITERATIONS);
+	}
+	
+	/**
+	 * Creates a new user with username {@code username} and password
+	 * {@code password}, hashing the password with {@code iterations} PBKDF2
+	 * iterations.
+	 *
+	 * @return user
+	 * @since 2021-01-26
+	 */
+	public static final User createUser(String username, String password,
+			int iterations) {
 		final byte[] salt = newSalt();
-		final String passwordHash = hash(password, salt);
+		final String passwordHash = PBKDF2_PREFIX + iterations + "$"
+				+ toHex(pbkdf2(password, salt, iterations));
 		return new User(username, passwordHash, salt);
 	}
 	
+	/**
+	 * Decodes a hexadecimal string.
+	 *
+	 * @return bytes, or an empty array if {@code hex} is not valid hexadecimal
+	 * @since 2021-01-26
+	 */
+	private static final byte[] fromHex(String hex) {
+		if (hex.length() % 2 != 0)
+			return new byte[0];
+		
+		final byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			final int high = Character.digit(hex.charAt(2 * i), 16);
+			final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				return new byte[0];
+			bytes[i] = (byte) (high << 4 | low);
+		}
+		return bytes;
+	}
+	
 	/**
 	 * Gets a user from an encoded string.
 	 *
@@ -58,35 +160,19 @@ public final class User {
 	}
 	
 	/**
-	 * Hashes a password with a given salt.
+	 * Hashes a password with a given salt, the way passwords were hashed
+	 * before PBKDF2 was used.
 	 *
-	 * @param password password to hash
+	 * @param password encoded password to hash
 	 * @param salt     salt to use
 	 * @return password hash
 	 * @since 2021-01-17
 	 */
-	private static final String hash(String password, byte[] salt) {
-		String generatedHash = null;
-		try {
-			// create hasher
-			final MessageDigest md = MessageDigest.getInstance("SHA-512");
-			md.update(salt);
-			
-			// hash password
-			final byte[] bytes = md.digest(password.getBytes());
-			
-			// convert hash to hexadecimal string
-			final StringBuilder sb = new StringBuilder();
-			for (int i = 0; i < bytes.length; i++) {
-				sb.append(
-						Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-			}
-			generatedHash = sb.toString();
-		} catch (final NoSuchAlgorithmException e) {
-			throw new AssertionError();
-		}
-		
-		return generatedHash;
+	private static final byte[] hash(byte[] password, byte[] salt) {
+		final MessageDigest md = DIGEST.get();
+		md.reset();
+		md.update(salt);
+		return md.digest(password);
 	}
 	
 	/**
@@ -94,22 +180,59 @@ public final class User {
 	 * @since 2021-01-17
 	 */
 	private static final byte[] newSalt() {
-		SecureRandom rng;
+		final byte[] salt = new byte[SALT_LENGTH];
+		SALT_GENERATOR.nextBytes(salt);
+		return salt;
+	}
+	
+	/**
+	 * Hashes a password with PBKDF2-HMAC-SHA512.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final byte[] pbkdf2(String password, byte[] salt,
+			int iterations) {
+		final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+				iterations, PBKDF2_KEY_LENGTH);
 		try {
-			rng = SecureRandom.getInstance("SHA1PRNG");
-		} catch (final NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			return null;
+			return PBKDF2.get().generateSecret(spec).getEncoded();
+		} catch (final InvalidKeySpecException e) {
+			throw new AssertionError(e);
+		} finally {
+			spec.clearPassword();
 		}
-		final byte[] salt = new byte[16];
-		rng.nextBytes(salt);
-		return salt;
+	}
+	
+	/**
+	 * Encodes bytes as a lowercase hexadecimal string.
+	 *
+	 * @since 2021-01-26
+	 */
+	private static final String toHex(byte[] bytes) {
+		final char[] hex = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] & 0xF0) >>> 4];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+		}
+		return new String(hex);
 	}
 	
 	private final String username;
 	
 	private final String passwordHash;
 	
+	/**
+	 * The password hash, decoded so that it can be compared without encoding
+	 * every hash that is tested against it.
+	 */
+	private final byte[] passwordHashBytes;
+	
+	/**
+	 * The number of PBKDF2 iterations used to hash the password, or 0 if it
+	 * was hashed with a single SHA-512 hash.
+	 */
+	private final int iterations;
+	
 	private final byte[] salt;
 	
 	/**
@@ -122,17 +245,39 @@ public final class User {
 		this.username = username;
 		this.passwordHash = passwordHash;
 		this.salt = salt;
+		
+		final String[] parts = passwordHash.split("\\$");
+		if (passwordHash.startsWith(PBKDF2_PREFIX) && parts.length == 3) {
+			this.iterations = Integer.parseInt(parts[1]);
+			this.passwordHashBytes = fromHex(parts[2]);
+		} else {
+			this.iterations = 0;
+			this.passwordHashBytes = fromHex(passwordHash);
+		}
 	}
 	
 	/**
-	 * Accepts a password and tests it against the user's password hash.
+	 * Accepts a password and tests it against the user's password hash. The
+	 * comparison takes the same time no matter how much of the hash matches.
 	 *
 	 * @param password password to test
 	 * @return true if password is correct, false otherwise
 	 * @since 2021-01-17
 	 */
 	public final boolean authenticatePassword(String password) {
-		return hash(password, this.salt).equals(this.passwordHash);
+		if (this.iterations > 0)
+			return MessageDigest.isEqual(this.passwordHashBytes,
+					pbkdf2(password, this.salt, this.iterations));
+		
+		if (MessageDigest.isEqual(this.passwordHashBytes,
+				hash(password.getBytes(StandardCharsets.UTF_8), this.salt)))
+			return true;
+		
+		// passwords used to be encoded with the platform's charset
+		final Charset platform = Charset.defaultCharset();
+		return !platform.equals(StandardCharsets.UTF_8)
+				&& MessageDigest.isEqual(this.passwordHashBytes,
+						hash(password.getBytes(platform), this.salt));
 	}
 	
 	/**
@@ -143,6 +288,16 @@ public final class User {
 		return this.username;
 	}
 	
+	/**
+	 * @param iterations number of PBKDF2 iterations new hashes should use
+	 * @return true iff the password hash is weaker than a new hash would be, so
+	 *         it should be replaced next time the password is known
+	 * @since 2021-01-26
+	 */
+	public final boolean needsRehash(int iterations) {
+		return this.iterations < iterations;
+	}
+	
 	@Override
 	public final String toString() {
 		return this.username + ":" + this.passwordHash + ":"
@@ -16,8 +16,10 @@
  */
 package imageRepository;
 
+import java.awt.Cursor;
 import java.awt.GridLayout;
-import java.util.function.BiPredicate;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 
 import javax.swing.JButton;
 import javax.swing.JDialog;
@@ -25,6 +27,7 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPasswordField;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 /**
  * A dialog that can be used to set a username and password.
@@ -32,7 +35,7 @@ import javax.swing.JTextField;
  * @since 2021-01-17
  */
 public final class UserLoginDialog {
-	private final BiPredicate<String, String> OKAction;
+	private final BiFunction<String, String, CompletableFuture<Boolean>> OKAction;
 	private final JTextField usernameField;
 	private final JPasswordField passwordField;
 	
@@ -41,10 +44,14 @@ public final class UserLoginDialog {
 	 *
 	 * @param parent   frame parent
 	 * @param OKAction action to do on OK press, arguments are username and
-	 *                 password. Window will only close if function returns true.
+	 *                 password. The dialog is disabled until the returned
+	 *                 future completes, and only closes if it completes with
+	 *                 true, so the action can check the password in the
+	 *                 background.
 	 * @since 2021-01-17
 	 */
-	public UserLoginDialog(JFrame parent, BiPredicate<String, String> OKAction) {
+	public UserLoginDialog(JFrame parent,
+			BiFunction<String, String, CompletableFuture<Boolean>> OKAction) {
 		this.OKAction = OKAction;
 		
 		final JDialog dialog = new JDialog(parent, "Log in or register", true);
@@ -67,15 +74,32 @@ public final class UserLoginDialog {
 			
 			final JButton OKButton = new JButton("Log in/Register");
 			dialog.add(OKButton);
-			OKButton.addActionListener(e -> {
-				if (this.OKAction.test(this.getUsername(), this.getPassword())) {
-					dialog.setVisible(false);
-				}
-			});
 			
 			final JButton cancelButton = new JButton("Cancel");
 			dialog.add(cancelButton);
 			cancelButton.addActionListener(e -> dialog.setVisible(false));
+			
+			OKButton.addActionListener(e -> {
+				// disable dialog until the password has been checked
+				OKButton.setEnabled(false);
+				cancelButton.setEnabled(false);
+				this.usernameField.setEnabled(false);
+				this.passwordField.setEnabled(false);
+				dialog.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+				
+				this.OKAction.apply(this.getUsername(), this.getPassword())
+						.whenCompleteAsync((success, exception) -> {
+							if (Boolean.TRUE.equals(success)) {
+								dialog.setVisible(false);
+							} else {
+								OKButton.setEnabled(true);
+								cancelButton.setEnabled(true);
+								this.usernameField.setEnabled(true);
+								this.passwordField.setEnabled(true);
+								dialog.setCursor(Cursor.getDefaultCursor());
+							}
+						}, SwingUtilities::invokeLater);
+			});
 		}
 		
 		dialog.pack();
@@ -183,13 +183,15 @@ public final class DelegateListModel<E> extends AbstractListModel<E>
 	
 	@Override
 	public boolean removeAll(final Collection<?> c) {
-		boolean changed = false;
-		for (final Object e : c) {
-			if (this.remove(e)) {
-				changed = true;
+		final int oldSize = this.size();
+		final boolean returnValue = this.delegate.removeAll(c);
+		if (returnValue) {
+			this.fireIntervalRemoved(this, this.size(), oldSize - 1);
+			if (this.size() > 0) {
+				this.fireContentsChanged(this, 0, this.size() - 1);
 			}
 		}
-		return changed;
+		return returnValue;
 	}
 	
 	@Override